@@ -0,0 +1,62 @@
+package fr.remiberthoz.imagej.timebar.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+/**
+ * Burning the timebar of one frame into one plane, for each bit depth.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DrawBenchmark {
+
+    @Param({"8-bit", "16-bit", "32-bit", "RGB"})
+    String type;
+
+    @Param({"512", "2048"})
+    int size;
+
+    @Param({"None", "Black"})
+    String background;
+
+    private static final int N_FRAMES = 10;
+
+    private TimeBarPlugin plugin;
+    private ImageProcessor ip;
+    private int frame;
+
+    @Setup
+    public void setup() {
+        ImagePlus imp = IJ.createImage("Draw", type + " ramp", size, size, 1, 1, N_FRAMES);
+        imp.getCalibration().frameInterval = 1.5;
+        imp.getCalibration().setTimeUnit("s");
+        plugin = new TimeBarPlugin(imp, "background=" + background + " show");
+        ip = imp.getStack().getProcessor(1);
+    }
+
+    @Benchmark
+    public void drawOverlayOnProcessor() {
+        frame = frame % N_FRAMES + 1;
+        // The overlay is moved while drawn, so it is created for each call.
+        plugin.drawOverlayOnProcessor(plugin.createTimeBarOverlay(frame), ip);
+    }
+}
@@ -0,0 +1,102 @@
+package fr.remiberthoz.imagej.timebar.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+/**
+ * Label generation: formatting one duration, one label of each kind, and
+ * the width of the widest label.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LabelBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    int nFrames;
+
+    /** Index in TimeBarTimeFormat.TIME_FORMATS. */
+    @Param({"0", "5", "8"})
+    int timeFormat;
+
+    private Object format;
+    private TimeBarPlugin intervalPlugin;
+    private TimeBarPlugin predefinedPlugin;
+    private int frame;
+
+    @Setup
+    public void setup() {
+        format = TimeBarPlugin.getTimeFormat(timeFormat);
+
+        ImagePlus imp = IJ.createImage("Labels", "8-bit black", 64, 64, 1, 1, nFrames);
+        imp.getCalibration().frameInterval = 1.5;
+        imp.getCalibration().setTimeUnit("s");
+        intervalPlugin = new TimeBarPlugin(imp, "show");
+
+        StringBuilder timestamps = new StringBuilder();
+        for (int f = 1; f <= nFrames; ++f)
+            timestamps.append(f == 1 ? "" : ",").append(f * 3).append(" min");
+        predefinedPlugin = new TimeBarPlugin(imp, "use pre-defined=[" + timestamps + "] show");
+    }
+
+    private int nextFrame() {
+        frame = frame % nFrames + 1;
+        return frame;
+    }
+
+    @Benchmark
+    public String formatMillis() {
+        return TimeBarPlugin.formatMillis(format, nextFrame() * 1537L, true);
+    }
+
+    @Benchmark
+    public String formatMillisWithoutUnits() {
+        return TimeBarPlugin.formatMillis(format, nextFrame() * 1537L, false);
+    }
+
+    @Benchmark
+    public String timeLabelFromFrameInterval() {
+        return intervalPlugin.getTimeLabelFromFrameInterval(nextFrame());
+    }
+
+    @Benchmark
+    public String timeLabelFromPredefined() {
+        return predefinedPlugin.getTimeLabelFromPredefined(nextFrame());
+    }
+
+    /** The width once the label table exists. */
+    @Benchmark
+    public int boxWidth() {
+        return intervalPlugin.getBoxWidthInPixels();
+    }
+
+    /** The width right after a configuration change. */
+    @Benchmark
+    public int boxWidthAfterChange() {
+        intervalPlugin.invalidate();
+        return intervalPlugin.getBoxWidthInPixels();
+    }
+
+    @Benchmark
+    public int boxWidthAfterChangePredefined() {
+        predefinedPlugin.invalidate();
+        return predefinedPlugin.getBoxWidthInPixels();
+    }
+}
@@ -0,0 +1,156 @@
+package fr.remiberthoz.imagej.timebar.bench;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import ij.ImagePlus;
+import ij.gui.Overlay;
+import ij.process.ImageProcessor;
+
+/**
+ * Gives the benchmarks access to the plugin.
+ *
+ * The plugin classes live in the default package, which cannot be
+ * imported, and JMH refuses benchmarks in the default package. The
+ * members used here are looked up once, so a call costs a reflective
+ * invocation, far below the cost of the code measured.
+ */
+class TimeBarPlugin {
+
+    private static final Class<?> PLUGIN = load("TimeBar_");
+    private static final Class<?> CONFIGURATION = load("TimeBarConfiguration");
+    private static final Class<?> TIME_FORMAT = load("TimeBarTimeFormat");
+
+    private static final Constructor<?> NEW_PLUGIN = constructor(PLUGIN, ImagePlus.class, CONFIGURATION);
+    private static final Method FROM_OPTIONS = method(CONFIGURATION, "fromOptions", String.class);
+    private static final Method FORMAT_MILLIS = method(TIME_FORMAT, "formatMillis", long.class, boolean.class);
+    private static final Method LABEL_FROM_FRAME_INTERVAL = method(PLUGIN, "getTimeLabelFromFrameInterval", int.class);
+    private static final Method LABEL_FROM_PREDEFINED = method(PLUGIN, "getTimeLabelFromPredefined", int.class);
+    private static final Method BOX_WIDTH = method(PLUGIN, "getBoxWidthInPixels");
+    private static final Method CREATE_OVERLAY = method(PLUGIN, "createTimeBarOverlay", int.class);
+    private static final Method UPDATE = method(PLUGIN, "updateTimeBar", boolean.class);
+    private static final Method DRAW_OVERLAY = method(PLUGIN, "drawOverlayOnProcessor", Overlay.class, ImageProcessor.class);
+    private static final Field LABELS = field(PLUGIN, "labels");
+    private static final Field LAYOUT = field(PLUGIN, "layout");
+    private static final Field TIME_FORMATS = field(TIME_FORMAT, "TIME_FORMATS");
+
+    private final Object plugin;
+
+    /**
+     * Creates a plugin working on {imp}, configured with macro-style
+     * {options}.
+     */
+    TimeBarPlugin(ImagePlus imp, String options) {
+        plugin = newInstance(NEW_PLUGIN, imp, invoke(FROM_OPTIONS, null, options));
+    }
+
+    String getTimeLabelFromFrameInterval(int frame) {
+        return (String) invoke(LABEL_FROM_FRAME_INTERVAL, plugin, frame);
+    }
+
+    String getTimeLabelFromPredefined(int frame) {
+        return (String) invoke(LABEL_FROM_PREDEFINED, plugin, frame);
+    }
+
+    int getBoxWidthInPixels() {
+        return (Integer) invoke(BOX_WIDTH, plugin);
+    }
+
+    Overlay createTimeBarOverlay(int frame) {
+        return (Overlay) invoke(CREATE_OVERLAY, plugin, frame);
+    }
+
+    void updateTimeBar(boolean previewOnly) {
+        invoke(UPDATE, plugin, previewOnly);
+    }
+
+    void drawOverlayOnProcessor(Overlay overlay, ImageProcessor ip) {
+        invoke(DRAW_OVERLAY, plugin, overlay, ip);
+    }
+
+    /**
+     * Drops the label table and layout, so that the next call computes
+     * them again.
+     */
+    void invalidate() {
+        try {
+            LABELS.set(plugin, null);
+            LAYOUT.set(plugin, null);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the time format {index} of TimeBarTimeFormat.TIME_FORMATS.
+     */
+    static Object getTimeFormat(int index) {
+        try {
+            return ((java.util.List<?>) TIME_FORMATS.get(null)).get(index);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String formatMillis(Object timeFormat, long millis, boolean withUnits) {
+        return (String) invoke(FORMAT_MILLIS, timeFormat, millis, withUnits);
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Constructor<?> constructor(Class<?> c, Class<?>... parameters) {
+        try {
+            Constructor<?> constructor = c.getDeclaredConstructor(parameters);
+            constructor.setAccessible(true);
+            return constructor;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Method method(Class<?> c, String name, Class<?>... parameters) {
+        try {
+            Method method = c.getDeclaredMethod(name, parameters);
+            method.setAccessible(true);
+            return method;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Field field(Class<?> c, String name) {
+        try {
+            Field field = c.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object newInstance(Constructor<?> constructor, Object... arguments) {
+        try {
+            return constructor.newInstance(arguments);
+        } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... arguments) {
+        try {
+            return method.invoke(target, arguments);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
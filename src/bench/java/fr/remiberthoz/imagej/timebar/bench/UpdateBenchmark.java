@@ -0,0 +1,64 @@
+package fr.remiberthoz.imagej.timebar.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+/**
+ * A full updateTimeBar(false) on a hyperstack, with the timebar in the
+ * Overlay, in a single dynamic ROI, or burned into the planes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class UpdateBenchmark {
+
+    @Param({"100", "1000"})
+    int nFrames;
+
+    /** Channels x slices. */
+    @Param({"1x1", "3x10"})
+    String dimensions;
+
+    @Param({"16-bit"})
+    String type;
+
+    @Param({"256"})
+    int size;
+
+    /** Options of the configuration, as recorded by the macro recorder. */
+    @Param({"overlay", "overlay dynamic", "background=Black"})
+    String options;
+
+    private TimeBarPlugin plugin;
+
+    @Setup
+    public void setup() {
+        String[] cs = dimensions.split("x");
+        ImagePlus imp = IJ.createImage("Update", type + " ramp", size, size, Integer.parseInt(cs[0]), Integer.parseInt(cs[1]), nFrames);
+        imp.getCalibration().frameInterval = 1.5;
+        imp.getCalibration().setTimeUnit("s");
+        plugin = new TimeBarPlugin(imp, options + " show");
+    }
+
+    @Benchmark
+    public void updateTimeBar() {
+        plugin.updateTimeBar(false);
+    }
+}
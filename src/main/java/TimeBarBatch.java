@@ -0,0 +1,136 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+
+/**
+ * Draws the timebar on every image of a directory, and saves the results
+ * as TIFF files in another directory, without any dialog or window.
+ *
+ * Images are processed concurrently by a bounded number of threads. A new
+ * image is opened only when the images being processed leave enough
+ * memory for it, so the batch does not run out of memory on large files.
+ *
+ * From a macro:
+ *   call("TimeBarBatch.run", input, output, "font=18 overlay show");
+ */
+public class TimeBarBatch {
+
+    /** Memory an image is expected to need, as a multiple of its file size. */
+    private static final int MEMORY_PER_FILE_BYTE = 2;
+
+    private final TimeBarConfiguration config;
+    private final int parallelism;
+    private final Semaphore memory;
+    private final int memoryPermits;
+
+    /**
+     * Creates a batch that processes up to {parallelism} images at once.
+     */
+    public TimeBarBatch(TimeBarConfiguration config, int parallelism) {
+        this.config = new TimeBarConfiguration(config);
+        this.parallelism = Math.max(1, parallelism);
+        // Permits are megabytes, half of the memory available to ImageJ.
+        this.memoryPermits = (int) Math.max(1, IJ.maxMemory() / 2 / (1024 * 1024));
+        this.memory = new Semaphore(memoryPermits);
+    }
+
+    /**
+     * Annotates the images of {inputDirectory} that ImageJ can open, and
+     * writes them to {outputDirectory} under the same name, as TIFF.
+     * Returns the number of images written.
+     *
+     * Images that cannot be annotated are reported in the log and
+     * skipped.
+     */
+    public int run(File inputDirectory, File outputDirectory) throws InterruptedException {
+        File[] files = inputDirectory.listFiles();
+        if (files == null)
+            throw new IllegalArgumentException("Not a directory: " + inputDirectory);
+        outputDirectory.mkdirs();
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        try {
+            for (final File file : files) {
+                if (!file.isFile() || file.isHidden())
+                    continue;
+                final File output = new File(outputDirectory, getTiffName(file));
+                final int permits = getMemoryPermits(file);
+
+                // Wait for enough memory before opening the next image.
+                memory.acquire(permits);
+                results.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() {
+                        try {
+                            return annotate(file, output);
+                        } finally {
+                            memory.release(permits);
+                        }
+                    }
+                }));
+            }
+
+            int written = 0;
+            for (Future<Boolean> result : results) {
+                try {
+                    if (result.get())
+                        ++written;
+                } catch (ExecutionException e) {
+                    IJ.log("Timebar plugin: " + e.getCause());
+                }
+            }
+            return written;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private boolean annotate(File input, File output) {
+        ImagePlus imp = IJ.openImage(input.getPath());
+        if (imp == null) {
+            IJ.log("Timebar plugin: Could not open " + input);
+            return false;
+        }
+        try {
+            TimeBar_ plugin = new TimeBar_(imp, config);
+            plugin.nThreads = Math.max(1, Prefs.getThreads() / parallelism);
+            plugin.annotate();
+        } catch (IllegalArgumentException e) {
+            IJ.log("Timebar plugin: " + e.getMessage());
+            return false;
+        }
+        boolean saved = IJ.saveAsTiff(imp, output.getPath());
+        imp.close();
+        return saved;
+    }
+
+    private int getMemoryPermits(File file) {
+        long megabytes = MEMORY_PER_FILE_BYTE * file.length() / (1024 * 1024) + 1;
+        return (int) Math.min(megabytes, memoryPermits);
+    }
+
+    private static String getTiffName(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return (dot > 0 ? name.substring(0, dot) : name) + ".tif";
+    }
+
+    /**
+     * Entry point for the macro call() function. Returns the number of
+     * images written.
+     */
+    public static String run(String inputDirectory, String outputDirectory, String options) throws InterruptedException {
+        TimeBarBatch batch = new TimeBarBatch(TimeBarConfiguration.fromOptions(options), Prefs.getThreads());
+        return "" + batch.run(new File(inputDirectory), new File(outputDirectory));
+    }
+}
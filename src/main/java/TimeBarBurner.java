@@ -0,0 +1,355 @@
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import ij.ImageStack;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Draws the timebar into the pixels of image processors.
+ *
+ * ImageProcessor.drawOverlay() only works for 8-bits and RGB. For other
+ * bit depths, the overlay is drawn into a mask covering only the part of
+ * the image the timebar can reach, and the mask is then written into the
+ * pixels, scaled to the display range of the processor.
+ *
+ * Labels are drawn into the mask once, and then copied from a
+ * TimeBarLabelCache, which burners of several threads can share. 8-bit
+ * and RGB planes are still drawn with drawOverlay(), label included:
+ * their anti-aliased text is blended into the pixels under it, which
+ * differ from one plane to the next, so it cannot be cached as a mask
+ * without changing the result.
+ *
+ * The mask is reused from one plane to the next, so a burner must not be
+ * shared between threads. burnStack() gives each worker its own burner.
+ */
+class TimeBarBurner {
+
+    /** Planes are not split into tasks smaller than this. */
+    private static final int MIN_PLANES_PER_TASK = 4;
+
+    final TimeBarLayout layout;
+    private final TimeBarLabelCache cache;
+    private final Rectangle bounds;
+    private final ByteProcessor mask;
+    private final double[] values = new double[256];
+    private final short[] shorts = new short[256];
+
+    // The full bar, and what is under it without the bar, in mask coordinates.
+    private Rectangle barBounds;
+    private byte[] barPixels;
+    private byte[] underBarPixels;
+
+    TimeBarBurner(TimeBarLayout layout) {
+        this(layout, new TimeBarLabelCache(layout));
+    }
+
+    TimeBarBurner(TimeBarLayout layout, TimeBarLabelCache cache) {
+        this.layout = layout;
+        this.cache = cache;
+        bounds = layout.getDrawingBounds();
+        mask = bounds.isEmpty() ? null : new ByteProcessor(bounds.width, bounds.height);
+    }
+
+    /**
+     * Draws the timebar of {frame}, labeled with {label}, into
+     * {processor}.
+     */
+    void drawTimeBar(ImageProcessor processor, int frame, String label) {
+        if (processor.getBitDepth() == 8 || processor.getBitDepth() == 24) {
+            // drawOverlay() only works for 8-bits and RGB
+            processor.drawOverlay(layout.createOverlay(label, frame));
+            return;
+        }
+        if (mask == null)
+            return;
+        writeMask(drawMask(frame, label), processor);
+    }
+
+    /**
+     * Returns the part of the image covered by the masks of createMask().
+     */
+    Rectangle getBounds() {
+        return new Rectangle(bounds);
+    }
+
+    /**
+     * Returns the timebar of {frame}, labeled with {label}, as a new mask
+     * covering getBounds(), or null if the timebar is not visible.
+     */
+    byte[] createMask(int frame, String label) {
+        if (mask == null)
+            return null;
+        return drawMask(frame, label).clone();
+    }
+
+    /**
+     * Draws the timebar of {frame} into the mask, and returns the pixels
+     * of the mask.
+     */
+    private byte[] drawMask(int frame, String label) {
+        if (barBounds == null && !layout.hideBar)
+            drawBar();
+
+        TimeBarLabelCache.Entry entry = cache.get(label);
+        if (entry == null) {
+            entry = drawLabel(label);
+            cache.put(label, entry);
+        }
+
+        byte[] maskPixels = (byte[]) mask.getPixels();
+        if (entry.pixels == null) {
+            Arrays.fill(maskPixels, (byte) 0);
+            Overlay overlay = layout.createOverlay(label, frame);
+            overlay.translate(-bounds.x, -bounds.y);
+            mask.drawOverlay(overlay);
+        } else {
+            Arrays.fill(maskPixels, (byte) 0);
+            for (int y = 0; y < entry.height; y++)
+                System.arraycopy(entry.pixels, y * entry.width, maskPixels, (entry.y + y) * bounds.width + entry.x, entry.width);
+            if (!layout.hideBar)
+                copyBar(frame, maskPixels);
+            Overlay events = layout.createEventsOverlay(frame);
+            if (events != null) {
+                events.translate(-bounds.x, -bounds.y);
+                mask.drawOverlay(events);
+            }
+        }
+        return maskPixels;
+    }
+
+    /**
+     * Draws the background and {label} into the mask, and returns the
+     * smallest rectangle of the mask holding what was drawn.
+     * 
+     * The bar is drawn before the label, so if the label reaches the bar
+     * the two cannot be drawn separately: the returned entry has no
+     * pixels in that case.
+     */
+    private TimeBarLabelCache.Entry drawLabel(String label) {
+        byte[] maskPixels = (byte[]) mask.getPixels();
+        Arrays.fill(maskPixels, (byte) 0);
+        Overlay overlay = new Overlay();
+        if (layout.bcolor != null)
+            overlay.add(layout.createBackgroundRoi());
+        overlay.add(layout.createTextRoi(label));
+        overlay.translate(-bounds.x, -bounds.y);
+        mask.drawOverlay(overlay);
+
+        if (!layout.hideBar && !Arrays.equals(getRegion(maskPixels, barBounds), underBarPixels))
+            return new TimeBarLabelCache.Entry(0, 0, 0, 0, null);
+
+        int x0 = bounds.width, y0 = bounds.height, x1 = -1, y1 = -1;
+        for (int y = 0; y < bounds.height; y++)
+            for (int x = 0; x < bounds.width; x++)
+                if (maskPixels[y * bounds.width + x] != 0) {
+                    x0 = Math.min(x0, x); x1 = Math.max(x1, x);
+                    y0 = Math.min(y0, y); y1 = Math.max(y1, y);
+                }
+        if (x1 < 0)
+            return new TimeBarLabelCache.Entry(0, 0, 0, 0, new byte[0]);
+        Rectangle r = new Rectangle(x0, y0, x1 - x0 + 1, y1 - y0 + 1);
+        return new TimeBarLabelCache.Entry(r.x, r.y, r.width, r.height, getRegion(maskPixels, r));
+    }
+
+    /**
+     * Draws the full bar into the mask, and keeps its pixels, along with
+     * the pixels of the background under it.
+     */
+    private void drawBar() {
+        byte[] maskPixels = (byte[]) mask.getPixels();
+        Roi barRoi = layout.createBarRoi(layout.nFrames);
+        barBounds = barRoi.getBounds();
+        barBounds.translate(-bounds.x, -bounds.y);
+        barBounds = barBounds.intersection(new Rectangle(0, 0, bounds.width, bounds.height));
+        if (barBounds.isEmpty())
+            barBounds = new Rectangle();
+
+        Arrays.fill(maskPixels, (byte) 0);
+        if (layout.bcolor != null) {
+            Overlay overlay = new Overlay(layout.createBackgroundRoi());
+            overlay.translate(-bounds.x, -bounds.y);
+            mask.drawOverlay(overlay);
+        }
+        underBarPixels = getRegion(maskPixels, barBounds);
+
+        Overlay overlay = new Overlay(barRoi);
+        overlay.translate(-bounds.x, -bounds.y);
+        mask.drawOverlay(overlay);
+        barPixels = getRegion(maskPixels, barBounds);
+    }
+
+    /**
+     * Copies the bar of {frame} into the mask, from the full bar.
+     */
+    private void copyBar(int frame, byte[] maskPixels) {
+        Rectangle r = layout.createBarRoi(frame).getBounds();
+        r.translate(-bounds.x, -bounds.y);
+        r = r.intersection(barBounds);
+        if (r.isEmpty())
+            return;
+        for (int y = r.y; y < r.y + r.height; y++)
+            System.arraycopy(barPixels, (y - barBounds.y) * barBounds.width + (r.x - barBounds.x), maskPixels, y * bounds.width + r.x, r.width);
+    }
+
+    private byte[] getRegion(byte[] maskPixels, Rectangle r) {
+        byte[] region = new byte[r.width * r.height];
+        for (int y = 0; y < r.height; y++)
+            System.arraycopy(maskPixels, (r.y + y) * bounds.width + r.x, region, y * r.width, r.width);
+        return region;
+    }
+
+    /**
+     * Draws {overlay}, in image coordinates, into {processor}. The ROIs
+     * of {overlay} may be moved.
+     */
+    void drawOverlay(Overlay overlay, ImageProcessor processor) {
+        if (processor.getBitDepth() == 8 || processor.getBitDepth() == 24) {
+            // drawOverlay() only works for 8-bits and RGB
+            processor.drawOverlay(overlay);
+            return;
+        }
+        if (mask == null)
+            return;
+
+        byte[] maskPixels = (byte[]) mask.getPixels();
+        Arrays.fill(maskPixels, (byte) 0);
+        overlay.translate(-bounds.x, -bounds.y);
+        mask.drawOverlay(overlay);
+        writeMask(maskPixels, processor);
+    }
+
+    private void writeMask(byte[] maskPixels, ImageProcessor processor) {
+        // Mask values are mapped to the display range, as putPixelValue() would.
+        double min = processor.getMin();
+        double max = processor.getMax();
+        for (int p = 1; p < 256; ++p)
+            values[p] = p / 255. * (max - min) + min;
+
+        if (processor.getBitDepth() == 16)
+            writeShorts(maskPixels, processor);
+        else
+            writeFloats(maskPixels, processor);
+    }
+
+    private void writeShorts(byte[] maskPixels, ImageProcessor processor) {
+        short[] pixels = (short[]) processor.getPixels();
+        int width = processor.getWidth();
+
+        float[] cTable = processor.getCalibrationTable();
+        boolean signed16 = cTable != null && cTable[0] == -32768f;
+        for (int p = 1; p < 256; ++p) {
+            double value = values[p];
+            if (signed16)
+                value += 32768;
+            if (value > 65535)
+                value = 65535;
+            else if (value < 0)
+                value = 0;
+            shorts[p] = (short) (value + 0.5);
+        }
+
+        for (int y = 0; y < bounds.height; y++) {
+            int maskOffset = y * bounds.width;
+            int offset = (bounds.y + y) * width + bounds.x;
+            for (int x = 0; x < bounds.width; x++) {
+                int p = maskPixels[maskOffset + x] & 0xff;
+                if (p > 0)
+                    pixels[offset + x] = shorts[p];
+            }
+        }
+    }
+
+    private void writeFloats(byte[] maskPixels, ImageProcessor processor) {
+        float[] pixels = (float[]) processor.getPixels();
+        int width = processor.getWidth();
+
+        for (int y = 0; y < bounds.height; y++) {
+            int maskOffset = y * bounds.width;
+            int offset = (bounds.y + y) * width + bounds.x;
+            for (int x = 0; x < bounds.width; x++) {
+                int p = maskPixels[maskOffset + x] & 0xff;
+                if (p > 0)
+                    pixels[offset + x] = (float) values[p];
+            }
+        }
+    }
+
+    /**
+     * Draws the timebar into the planes of {stack} at {indices}, where
+     * {frames} holds the frame of each plane.
+     * 
+     * Planes are independent, so they are split across {nThreads}
+     * workers. Each plane is drawn exactly as drawOverlay() would, so the
+     * result does not depend on the number of threads.
+     * 
+     * If {undo} is not null, the pixels under the timebar are saved into
+     * it before each plane is drawn.
+     */
+    static void burnStack(ImageStack stack, int[] indices, int[] frames, TimeBarLayout layout, TimeBarLabels labels, TimeBarUndo undo, int nThreads) {
+        TimeBarLabelCache cache = new TimeBarLabelCache(layout);
+        if (undo != null)
+            undo.ensureCapacity(stack.getSize());
+        BurnTask task = new BurnTask(stack, indices, frames, layout, labels, cache, undo, 0, indices.length,
+            Math.max(MIN_PLANES_PER_TASK, indices.length / (4 * nThreads)));
+        if (nThreads <= 1 || indices.length <= MIN_PLANES_PER_TASK) {
+            task.compute();
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(nThreads);
+        try {
+            pool.invoke(task);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static class BurnTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ImageStack stack;
+        private final int[] indices, frames;
+        private final TimeBarLayout layout;
+        private final TimeBarLabels labels;
+        private final TimeBarLabelCache cache;
+        private final TimeBarUndo undo;
+        private final int start, end, threshold;
+
+        BurnTask(ImageStack stack, int[] indices, int[] frames, TimeBarLayout layout, TimeBarLabels labels, TimeBarLabelCache cache, TimeBarUndo undo, int start, int end, int threshold) {
+            this.stack = stack;
+            this.indices = indices;
+            this.frames = frames;
+            this.layout = layout;
+            this.labels = labels;
+            this.cache = cache;
+            this.undo = undo;
+            this.start = start;
+            this.end = end;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > threshold) {
+                int middle = (start + end) >>> 1;
+                invokeAll(
+                    new BurnTask(stack, indices, frames, layout, labels, cache, undo, start, middle, threshold),
+                    new BurnTask(stack, indices, frames, layout, labels, cache, undo, middle, end, threshold));
+                return;
+            }
+            TimeBarBurner burner = new TimeBarBurner(layout, cache);
+            for (int i = start; i < end; ++i) {
+                int frame = frames[i];
+                ImageProcessor ip = stack.getProcessor(indices[i]);
+                if (undo != null)
+                    undo.save(indices[i], ip, burner.bounds);
+                burner.drawTimeBar(ip, frame, labels.getLabel(frame));
+            }
+        }
+    }
+}
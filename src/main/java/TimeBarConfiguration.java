@@ -1,4 +1,8 @@
-class TimeBarConfiguration {
+import ij.IJ;
+import ij.Macro;
+import ij.util.Tools;
+
+public class TimeBarConfiguration {
 
     private static int defaultBarHeight = 4;
 
@@ -12,15 +16,26 @@ class TimeBarConfiguration {
     boolean hideBar;
     boolean serifFont;
     boolean useOverlay;
+    boolean dynamicOverlay;
     boolean showUnits;
     int fontSize;
     boolean usePredefinedTimestamps;
     String predefinedTimestamps;
+    String timestampsFile;
+    String eventsFile;
+    boolean useMetadataTimes;
+    boolean liveMode;
+    double expectedDuration;
 
-    TimeBarConfiguration() {
+    public TimeBarConfiguration() {
         this.frameOffset = 0;
         this.usePredefinedTimestamps = false;
         this.predefinedTimestamps = "";
+        this.timestampsFile = "";
+        this.eventsFile = "";
+        this.useMetadataTimes = false;
+        this.liveMode = false;
+        this.expectedDuration = 0;
         this.barThicknessInPixels = defaultBarHeight;
         this.location = TimeBarLocation.LOCATIONS.get(0);  // TODO: Default value should not depend on the values are defined.
         this.color = TimeBarColor.COLORS.get(7);
@@ -30,11 +45,12 @@ class TimeBarConfiguration {
         this.hideBar = false;
         this.serifFont = false;
         this.useOverlay = true;
+        this.dynamicOverlay = false;
         this.showUnits = true;
         this.fontSize = 14;
     }
 
-    TimeBarConfiguration(TimeBarConfiguration model) {
+    public TimeBarConfiguration(TimeBarConfiguration model) {
         this.updateFrom(model);
     }
     
@@ -42,6 +58,11 @@ class TimeBarConfiguration {
         this.frameOffset = model.frameOffset;
         this.usePredefinedTimestamps = model.usePredefinedTimestamps;
         this.predefinedTimestamps = model.predefinedTimestamps;
+        this.timestampsFile = model.timestampsFile;
+        this.eventsFile = model.eventsFile;
+        this.useMetadataTimes = model.useMetadataTimes;
+        this.liveMode = model.liveMode;
+        this.expectedDuration = model.expectedDuration;
         this.barThicknessInPixels = model.barThicknessInPixels;
         this.location = model.location;
         this.color = model.color;
@@ -51,7 +72,118 @@ class TimeBarConfiguration {
         this.serifFont = model.serifFont;
         this.hideBar = model.hideBar;
         this.useOverlay = model.useOverlay;
+        this.dynamicOverlay = model.dynamicOverlay;
         this.showUnits = model.showUnits;
         this.fontSize = model.fontSize;
-    }   
+    }
+
+    /**
+     * Returns this configuration as a string of options, with the same
+     * keys as the ones recorded by the macro recorder for the dialog.
+     */
+    public String toOptions() {
+        StringBuilder options = new StringBuilder();
+        options.append("offset=").append(frameOffset);
+        if (usePredefinedTimestamps)
+            options.append(" use");
+        options.append(" pre-defined=[").append(predefinedTimestamps).append("]");
+        options.append(" timestamps=[").append(timestampsFile).append("]");
+        options.append(" events=[").append(eventsFile).append("]");
+        options.append(" thickness=").append(barThicknessInPixels);
+        options.append(" font=").append(fontSize);
+        options.append(" expected=").append(expectedDuration);
+        options.append(" color=[").append(color.name).append("]");
+        options.append(" background=[").append(bcolor.name).append("]");
+        options.append(" location=[").append(location.name).append("]");
+        options.append(" time=[").append(timeFormat.description).append("]");
+        if (boldText) options.append(" bold");
+        if (hideBar) options.append(" hide");
+        if (serifFont) options.append(" serif");
+        if (useOverlay) options.append(" overlay");
+        if (showUnits) options.append(" show");
+        if (dynamicOverlay) options.append(" dynamic");
+        if (useMetadataTimes) options.append(" acquisition");
+        if (liveMode) options.append(" live");
+        return options.toString();
+    }
+
+    /**
+     * Returns the configuration described by a string of options, as
+     * produced by toOptions(). Missing keys keep their default value, and
+     * so do numbers that cannot be parsed, which are reported.
+     */
+    public static TimeBarConfiguration fromOptions(String options) {
+        TimeBarConfiguration config = new TimeBarConfiguration();
+
+        config.frameOffset = getNumber(options, "offset", config.frameOffset);
+        config.usePredefinedTimestamps = hasFlag(options, "use");
+        config.predefinedTimestamps = Macro.getValue(options, "pre-defined", config.predefinedTimestamps);
+        config.timestampsFile = Macro.getValue(options, "timestamps", config.timestampsFile);
+        config.eventsFile = Macro.getValue(options, "events", config.eventsFile);
+        config.barThicknessInPixels = (int) getNumber(options, "thickness", config.barThicknessInPixels);
+        config.fontSize = (int) getNumber(options, "font", config.fontSize);
+        config.expectedDuration = getNumber(options, "expected", config.expectedDuration);
+
+        String color = Macro.getValue(options, "color", config.color.name);
+        for (TimeBarColor c : TimeBarColor.COLORS)
+            if (c.name.equals(color) && c.color != null) config.color = c;
+        String bcolor = Macro.getValue(options, "background", config.bcolor.name);
+        for (TimeBarColor c : TimeBarColor.COLORS)
+            if (c.name.equals(bcolor)) config.bcolor = c;
+        String location = Macro.getValue(options, "location", config.location.name);
+        for (TimeBarLocation l : TimeBarLocation.LOCATIONS)
+            if (l.name.equals(location)) config.location = l;
+        String timeFormat = Macro.getValue(options, "time", config.timeFormat.description);
+        for (TimeBarTimeFormat tf : TimeBarTimeFormat.TIME_FORMATS)
+            if (tf.description.equals(timeFormat)) config.timeFormat = tf;
+
+        config.boldText = hasFlag(options, "bold");
+        config.hideBar = hasFlag(options, "hide");
+        config.serifFont = hasFlag(options, "serif");
+        config.useOverlay = hasFlag(options, "overlay");
+        config.showUnits = hasFlag(options, "show");
+        config.dynamicOverlay = hasFlag(options, "dynamic");
+        config.useMetadataTimes = hasFlag(options, "acquisition");
+        config.liveMode = hasFlag(options, "live");
+        return config;
+    }
+
+    /**
+     * Returns true if {options} hold the checkbox {key}, as a word of its
+     * own outside of any [bracketed] value.
+     */
+    static boolean hasFlag(String options, String key) {
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i <= options.length(); ++i) {
+            char c = i < options.length() ? options.charAt(i) : ' ';
+            if (c == '[') {
+                ++depth;
+            } else if (c == ']') {
+                depth = Math.max(0, depth - 1);
+            } else if (c == ' ' && depth == 0) {
+                if (options.regionMatches(start, key, 0, key.length()) && i - start == key.length())
+                    return true;
+                start = i + 1;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of {key} in {options}, or {defaultValue} if it is
+     * missing. A value that is not a number is reported, as the dialog
+     * would, and replaced by {defaultValue}.
+     */
+    private static double getNumber(String options, String key, double defaultValue) {
+        String value = Macro.getValue(options, key, null);
+        if (value == null)
+            return defaultValue;
+        double number = Tools.parseDouble(value);
+        if (Double.isNaN(number)) {
+            IJ.error("Timebar", "\"" + value + "\" is an invalid number for \"" + key + "\", using " + defaultValue + ".");
+            return defaultValue;
+        }
+        return number;
+    }
 }
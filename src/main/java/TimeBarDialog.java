@@ -3,8 +3,8 @@ import ij.gui.MultiLineLabel;
 
 class TimeBarDialog extends GenericDialog {
 
-    static final String[] checkboxLabels = {"Bold Text", "Hide bar", "Serif Font", "Overlay", "Show units"};
-    boolean[] checkboxStates = new boolean[5];
+    static final String[] checkboxLabels = {"Bold Text", "Hide bar", "Serif Font", "Overlay", "Show units", "Dynamic overlay", "Acquisition times from metadata", "Live acquisition"};
+    boolean[] checkboxStates = new boolean[8];
 
     TimeBarDialog(TimeBarConfiguration config, TimeBar_ plugin) {
         super("Time Bar");
@@ -16,17 +16,22 @@ class TimeBarDialog extends GenericDialog {
             );
         addCheckbox("Use pre-defined timestamps instead of frame interval", config.usePredefinedTimestamps);
         addStringField("Pre-defined", config.predefinedTimestamps);
+        addFileField("Timestamps file (replaces pre-defined)", config.timestampsFile);
+        addFileField("Events file (CSV)", config.eventsFile);
         addNumericField("Thickness in pixels: ", config.barThicknessInPixels, 0);
         addNumericField("Font size: ", config.fontSize, 0);
+        addNumericField("Expected duration (live): ", config.expectedDuration, 0, 6, "s");
         addChoice("Color: ", TimeBarColor.getColorNames(false), config.color.name);
         addChoice("Background: ", TimeBarColor.getColorNames(true), config.bcolor.name);
         addChoice("Location: ", TimeBarLocation.getLocationNames(), config.location.name);
         addChoice("Time format: ", TimeBarTimeFormat.getTimeFormatDescs(), config.timeFormat.description);
         checkboxStates[0] = config.boldText; checkboxStates[1] = config.hideBar;
         checkboxStates[2] = config.serifFont; checkboxStates[3] = config.useOverlay;
-        checkboxStates[4] = config.showUnits;
+        checkboxStates[4] = config.showUnits; checkboxStates[5] = config.dynamicOverlay;
+        checkboxStates[6] = config.useMetadataTimes; checkboxStates[7] = config.liveMode;
         setInsets(10, 25, 0);
-        addCheckboxGroup(3, 2, checkboxLabels, checkboxStates);
+        addCheckboxGroup(4, 2, checkboxLabels, checkboxStates);
+        addStringField("Jump to time (s)", "");
 
         ((MultiLineLabel) this.getMessage()).setText(
             "First frame: " + plugin.getTimeLabel(1) + "\n" +
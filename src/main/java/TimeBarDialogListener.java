@@ -1,17 +1,24 @@
 import ij.gui.GenericDialog;
 import ij.gui.MultiLineLabel;
 import ij.gui.DialogListener;
+import ij.util.Tools;
 import java.awt.AWTEvent;
 
 class TimeBarDialogListener implements DialogListener {
 
     TimeBarConfiguration config;
     TimeBar_ plugin;
+    private final TimeBarPreview preview;
 
+    /**
+     * Creates a listener that reads the dialog into a copy of {config},
+     * and previews it on {plugin} in the background.
+     */
     public TimeBarDialogListener(TimeBarConfiguration config, TimeBar_ plugin) {
         super();
-        this.config = config;
+        this.config = new TimeBarConfiguration(config);
         this.plugin = plugin;
+        this.preview = new TimeBarPreview(plugin);
     }
 
     @Override
@@ -19,8 +26,11 @@ class TimeBarDialogListener implements DialogListener {
         config.frameOffset = gd.getNextNumber();
         config.usePredefinedTimestamps = gd.getNextBoolean();
         config.predefinedTimestamps = gd.getNextString();
+        config.timestampsFile = gd.getNextString().trim();
+        config.eventsFile = gd.getNextString().trim();
         config.barThicknessInPixels = (int) gd.getNextNumber();
         config.fontSize = (int) gd.getNextNumber();
+        config.expectedDuration = gd.getNextNumber();
         config.color = TimeBarColor.COLORS.get(gd.getNextChoiceIndex());
         config.bcolor = TimeBarColor.COLORS.get(gd.getNextChoiceIndex());
         config.location = TimeBarLocation.LOCATIONS.get(gd.getNextChoiceIndex());
@@ -30,22 +40,27 @@ class TimeBarDialogListener implements DialogListener {
         config.serifFont = gd.getNextBoolean();
         config.useOverlay = gd.getNextBoolean();
         config.showUnits = gd.getNextBoolean();
+        config.dynamicOverlay = gd.getNextBoolean();
+        config.useMetadataTimes = gd.getNextBoolean();
+        config.liveMode = gd.getNextBoolean();
+        double jumpTime = Tools.parseDouble(gd.getNextString().trim());
 
-        if (config.usePredefinedTimestamps) {
-            String[] timestamps = config.predefinedTimestamps.split(",");
-            if (timestamps.length != plugin.nFrames) {
-                ((MultiLineLabel) gd.getMessage()).setText(
-                    "First frame: INVALID PRE-DEFINED\n" +
-                    "Last frame: INVALID PRE-DEFINED");
-            }
+        // A null event reads the values of a closed dialog: there is
+        // nothing left to preview.
+        if (e != null) {
+            // Preview the timebar of the frame shown at the time asked for.
+            preview.request(new TimeBarConfiguration(config), jumpTime, (MultiLineLabel) gd.getMessage());
         }
 
-        ((MultiLineLabel) gd.getMessage()).setText(
-            "First frame: " + plugin.getTimeLabel(1) + "\n" +
-            "Last frame: " + plugin.getTimeLabel(plugin.nFrames));
-
-        plugin.updateTimeBar(true);
-
         return true;
     }
+
+    /**
+     * Stops the preview once the dialog is closed, and copies the last
+     * values read from the dialog into {target}.
+     */
+    void finish(TimeBarConfiguration target) {
+        preview.stop();
+        target.updateFrom(config);
+    }
 }
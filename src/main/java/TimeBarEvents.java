@@ -0,0 +1,220 @@
+import java.awt.Color;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import ij.plugin.Colors;
+import ij.util.Tools;
+
+/**
+ * Immutable list of events, such as "drug added" or "laser on", read
+ * once from a CSV file and indexed by frame.
+ *
+ * Each line of the file holds the first and last frames of an event, its
+ * name and optionally its color: "12,40,Laser on,cyan". The last frame
+ * may be left empty for an event of a single frame. Lines whose first
+ * field is not a number, such as a header, are ignored.
+ *
+ * Events are sorted by first frame into primitive arrays, which form an
+ * implicit balanced tree: the middle event of a range is the root of the
+ * range, and holds the last frame of all the events of the range. The
+ * events active at a frame are found by skipping the ranges that end
+ * before it or start after it, so in O(log n + k) for k active events
+ * in practice, rather than by scanning the n events.
+ *
+ * An instance remembers the file it was read from, so that the plugin
+ * reads the events again only when isReadFrom() returns false, or when
+ * isModified() returns true. The first only compares paths, and is
+ * cheap enough for every frame; the second looks at the file.
+ */
+class TimeBarEvents {
+
+    private static final int[] NONE = new int[0];
+
+    private final int[] firsts;
+    private final int[] lasts;
+    private final String[] names;
+    private final Color[] colors;
+
+    // Largest last frame of the range each event is the root of.
+    private final int[] maxLasts;
+
+    // What the events were read from.
+    private final String path;
+    private final long lastModified;
+    private final long length;
+
+    private TimeBarEvents(int[] firsts, int[] lasts, String[] names, Color[] colors, String path, long lastModified, long length) {
+        this.firsts = firsts;
+        this.lasts = lasts;
+        this.names = names;
+        this.colors = colors;
+        this.path = path;
+        this.lastModified = lastModified;
+        this.length = length;
+        this.maxLasts = new int[firsts.length];
+        index(0, firsts.length);
+    }
+
+    /**
+     * Fills {maxLasts} for the range from {from} to {to}, excluded, and
+     * returns the largest last frame of the range.
+     */
+    private int index(int from, int to) {
+        if (from >= to)
+            return Integer.MIN_VALUE;
+        int mid = (from + to) >>> 1;
+        maxLasts[mid] = Math.max(lasts[mid], Math.max(index(from, mid), index(mid + 1, to)));
+        return maxLasts[mid];
+    }
+
+    /**
+     * Reads the events of the CSV file at {path}.
+     */
+    static TimeBarEvents read(String path) throws IOException {
+        File file = new File(path);
+        List<int[]> frames = new ArrayList<int[]>();
+        List<String> names = new ArrayList<String>();
+        List<Color> colors = new ArrayList<Color>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            int n = 0;
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                ++n;
+                if (line.trim().isEmpty())
+                    continue;
+                String[] fields = line.split(",", 4);
+                double first = Tools.parseDouble(fields[0].trim());
+                if (Double.isNaN(first))
+                    continue;
+                double last = fields.length > 1 && !fields[1].trim().isEmpty() ? Tools.parseDouble(fields[1].trim()) : first;
+                if (Double.isNaN(last) || last < first)
+                    throw new IOException("Invalid frames on line " + n + ": " + line);
+                frames.add(new int[] {(int) first, (int) last, names.size()});
+                names.add(fields.length > 2 ? unquote(fields[2].trim()) : "");
+                colors.add(fields.length > 3 ? Colors.decode(unquote(fields[3].trim()), null) : null);
+            }
+        } finally {
+            reader.close();
+        }
+
+        // Sort by first frame, then by last frame.
+        int[][] sorted = frames.toArray(new int[0][]);
+        Arrays.sort(sorted, new Comparator<int[]>() {
+            public int compare(int[] a, int[] b) {
+                return a[0] != b[0] ? Integer.compare(a[0], b[0]) : Integer.compare(a[1], b[1]);
+            }
+        });
+        int size = sorted.length;
+        int[] firsts = new int[size];
+        int[] lasts = new int[size];
+        String[] sortedNames = new String[size];
+        Color[] sortedColors = new Color[size];
+        for (int i = 0; i < size; ++i) {
+            firsts[i] = sorted[i][0];
+            lasts[i] = sorted[i][1];
+            sortedNames[i] = names.get(sorted[i][2]);
+            sortedColors[i] = colors.get(sorted[i][2]);
+        }
+        return new TimeBarEvents(firsts, lasts, sortedNames, sortedColors, path, file.lastModified(), file.length());
+    }
+
+    private static String unquote(String field) {
+        if (field.length() >= 2 && field.startsWith("\"") && field.endsWith("\""))
+            return field.substring(1, field.length() - 1).replace("\"\"", "\"");
+        return field;
+    }
+
+    /**
+     * Returns an empty list standing for the file at {path}, which could
+     * not be read, so that it is not read again until it changes.
+     */
+    static TimeBarEvents unreadable(String path) {
+        File file = new File(path);
+        return new TimeBarEvents(NONE, NONE, new String[0], new Color[0], path, file.lastModified(), file.length());
+    }
+
+    /**
+     * Returns true if these events were read from the file at {path}.
+     */
+    boolean isReadFrom(String path) {
+        return path.equals(this.path);
+    }
+
+    /**
+     * Returns true if the file these events were read from changed since.
+     */
+    boolean isModified() {
+        File file = new File(path);
+        return file.lastModified() != lastModified || file.length() != length;
+    }
+
+    /**
+     * Returns the indices of the events active at {frame}, sorted by
+     * first frame.
+     */
+    int[] getActive(int frame) {
+        Found found = new Found();
+        search(frame, 0, firsts.length, found);
+        return found.count == 0 ? NONE : Arrays.copyOf(found.events, found.count);
+    }
+
+    /**
+     * Adds the events of the range from {from} to {to}, excluded, that
+     * are active at {frame} to {found}, in order.
+     */
+    private void search(int frame, int from, int to, Found found) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (maxLasts[mid] < frame)
+                return; // The whole range ended before.
+            search(frame, from, mid, found);
+            if (firsts[mid] > frame)
+                return; // The rest of the range starts after.
+            if (lasts[mid] >= frame)
+                found.add(mid);
+            from = mid + 1;
+        }
+    }
+
+    private static class Found {
+        int[] events = new int[4];
+        int count;
+
+        void add(int event) {
+            if (count == events.length)
+                events = Arrays.copyOf(events, 2 * count);
+            events[count++] = event;
+        }
+    }
+
+    int size() {
+        return firsts.length;
+    }
+
+    int getFirst(int event) {
+        return firsts[event];
+    }
+
+    int getLast(int event) {
+        return lasts[event];
+    }
+
+    String getName(int event) {
+        return names[event];
+    }
+
+    /**
+     * Returns the color of {event}, or null if the file gives none.
+     */
+    Color getColor(int event) {
+        return colors[event];
+    }
+}
@@ -0,0 +1,71 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Cache of labels already drawn into the mask of a TimeBarBurner, so that
+ * a label shown in several channels and slices, or in several frames, is
+ * rasterized only once.
+ *
+ * Entries are evicted in least recently used order once the cached masks
+ * exceed {maxBytes}. The cache can be shared by the burners of several
+ * threads, as long as they use the same layout.
+ */
+class TimeBarLabelCache {
+
+    static final long DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+
+    /**
+     * The pixels drawn for one label, inside the rectangle {x}, {y},
+     * {width}, {height} of the mask. A null {pixels} means the label
+     * cannot be cached and must be drawn every time.
+     */
+    static class Entry {
+        final int x, y, width, height;
+        final byte[] pixels;
+
+        Entry(int x, int y, int width, int height, byte[] pixels) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+        }
+
+        /** Counts the pixels, plus a rough estimate of the entry overhead. */
+        int getSizeInBytes() {
+            return 64 + (pixels == null ? 0 : pixels.length);
+        }
+    }
+
+    final TimeBarLayout layout;
+    private final long maxBytes;
+    private long bytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    TimeBarLabelCache(TimeBarLayout layout) {
+        this(layout, DEFAULT_MAX_BYTES);
+    }
+
+    TimeBarLabelCache(TimeBarLayout layout, long maxBytes) {
+        this.layout = layout;
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized Entry get(String label) {
+        return entries.get(label);
+    }
+
+    synchronized void put(String label, Entry entry) {
+        Entry previous = entries.put(label, entry);
+        if (previous != null)
+            bytes -= previous.getSizeInBytes();
+        bytes += entry.getSizeInBytes();
+
+        // Keep at least the entry just added, even if it is too large.
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > maxBytes && entries.size() > 1) {
+            bytes -= eldest.next().getSizeInBytes();
+            eldest.remove();
+        }
+    }
+}
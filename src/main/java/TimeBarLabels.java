@@ -0,0 +1,218 @@
+import java.awt.Font;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Immutable table of the labels of every frame, with the largest width
+ * of these labels in pixels.
+ *
+ * Labels of the built-in time formats only differ by their digits, and
+ * the longest ones are those of the first or the last frame, so the
+ * largest width is found by measuring these two labels with all their
+ * digits replaced by the widest one. Only pre-defined timestamps, which
+ * can be any text, are measured one by one.
+ *
+ * The table is built once for a given configuration, and must be
+ * rebuilt when isValidFor() returns false. When only frames were added
+ * to the image, canExtendTo() returns true, and extend() labels the new
+ * frames only.
+ *
+ * Extended tables share their arrays with the table they extend, which
+ * never reads past its own frames. The arrays grow by doubling, so
+ * adding a frame costs O(1), amortized.
+ */
+class TimeBarLabels {
+
+    private final String[] labels;
+    final int maxWidth;
+    private final Font font;
+
+    // Everything the labels and their widths depend on.
+    private final int nFrames;
+    private final double frameOffset;
+    private final TimeBarTimeFormat timeFormat;
+    private final boolean showUnits;
+    private final boolean usePredefinedTimestamps;
+    private final TimeBarTimestamps timestamps;
+    private final TimeBarPlaneTimes planeTimes;
+    private final boolean boldText;
+    private final boolean serifFont;
+    private final int fontSize;
+    private final String timeUnit;
+    private final double frameInterval;
+
+    TimeBarLabels(TimeBar_ plugin, TimeBarConfiguration config, Calibration calibration, Font font) {
+        this.nFrames = plugin.nFrames;
+        this.frameOffset = config.frameOffset;
+        this.timeFormat = config.timeFormat;
+        this.showUnits = config.showUnits;
+        this.usePredefinedTimestamps = config.usePredefinedTimestamps;
+        this.timestamps = config.usePredefinedTimestamps ? plugin.getTimestamps() : null;
+        this.planeTimes = config.usePredefinedTimestamps ? null : plugin.getPlaneTimes();
+        this.boldText = config.boldText;
+        this.serifFont = config.serifFont;
+        this.fontSize = config.fontSize;
+        this.timeUnit = calibration.getTimeUnit();
+        this.frameInterval = calibration.frameInterval;
+        this.font = font;
+
+        labels = new String[nFrames];
+        fill(plugin, 1);
+        maxWidth = getMaxWidth(1, -1);
+    }
+
+    /**
+     * Creates the table of {previous}, extended to the frames of
+     * {plugin}.
+     */
+    private TimeBarLabels(TimeBarLabels previous, TimeBar_ plugin) {
+        this.nFrames = plugin.nFrames;
+        this.frameOffset = previous.frameOffset;
+        this.timeFormat = previous.timeFormat;
+        this.showUnits = previous.showUnits;
+        this.usePredefinedTimestamps = previous.usePredefinedTimestamps;
+        this.timestamps = previous.timestamps;
+        this.planeTimes = previous.usePredefinedTimestamps ? null : plugin.getPlaneTimes();
+        this.boldText = previous.boldText;
+        this.serifFont = previous.serifFont;
+        this.fontSize = previous.fontSize;
+        this.timeUnit = previous.timeUnit;
+        this.frameInterval = previous.frameInterval;
+        this.font = previous.font;
+
+        if (nFrames <= previous.labels.length) {
+            labels = previous.labels;
+        } else {
+            int capacity = Math.max(nFrames, 2 * previous.labels.length);
+            labels = Arrays.copyOf(previous.labels, capacity);
+        }
+        fill(plugin, previous.nFrames + 1);
+        maxWidth = getMaxWidth(previous.nFrames + 1, previous.maxWidth);
+    }
+
+    /**
+     * Labels the frames from {fStart} to the last one.
+     */
+    private void fill(TimeBar_ plugin, int fStart) {
+        for (int f = fStart; f <= nFrames; ++f) {
+            // A preview may be cancelled while the table is built.
+            if ((f & 255) == 0 && Thread.currentThread().isInterrupted())
+                throw new CancellationException();
+            labels[f-1] = plugin.formatTimeLabel(f);
+        }
+    }
+
+    /**
+     * Returns the largest width of the labels from {fStart} to the last
+     * one, including {max}.
+     */
+    private int getMaxWidth(int fStart, int max) {
+        ImageProcessor ip = createMeasuringProcessor();
+        if (usePredefinedTimestamps || !TimeBarTimeFormat.TIME_FORMATS.contains(timeFormat)) {
+            for (int f = fStart; f <= nFrames; ++f) {
+                if ((f & 255) == 0 && Thread.currentThread().isInterrupted())
+                    throw new CancellationException();
+                max = Math.max(max, ip.getStringWidth(labels[f-1]));
+            }
+            return max;
+        }
+
+        // Times grow or decrease from the first frame to the last, so
+        // these two labels have the most digits of each sign.
+        char widest = '0';
+        for (char digit = '1'; digit <= '9'; ++digit)
+            if (ip.getStringWidth(String.valueOf(digit)) > ip.getStringWidth(String.valueOf(widest)))
+                widest = digit;
+        max = Math.max(max, ip.getStringWidth(saturate(labels[fStart-1], widest)));
+        return Math.max(max, ip.getStringWidth(saturate(labels[nFrames-1], widest)));
+    }
+
+    /**
+     * Returns {label} with all its digits replaced by {digit}.
+     */
+    private static String saturate(String label, char digit) {
+        char[] chars = label.toCharArray();
+        for (int i = 0; i < chars.length; ++i)
+            if (chars[i] >= '0' && chars[i] <= '9')
+                chars[i] = digit;
+        return new String(chars);
+    }
+
+    /**
+     * Returns the width of {label}, drawn with the font of this table.
+     */
+    int measure(String label) {
+        return createMeasuringProcessor().getStringWidth(label);
+    }
+
+    private ImageProcessor createMeasuringProcessor() {
+        // A private processor is enough to measure strings, and leaves the
+        // font of the image processor untouched.
+        ImageProcessor ip = new ByteProcessor(1, 1);
+        ip.setFont(font);
+        ip.setAntialiasedText(true);
+        return ip;
+    }
+
+    /**
+     * Returns true if this table was built for the same labels and font
+     * as the ones {plugin} would draw with {config}.
+     */
+    boolean isValidFor(TimeBar_ plugin, TimeBarConfiguration config) {
+        return this.nFrames == plugin.nFrames && hasSameLabels(plugin, config);
+    }
+
+    /**
+     * Returns true if {plugin} only has more frames than this table, so
+     * that extend() can label them.
+     */
+    boolean canExtendTo(TimeBar_ plugin, TimeBarConfiguration config) {
+        // Pre-defined timestamps must match the number of frames, so
+        // adding frames changes all the labels.
+        return this.nFrames < plugin.nFrames && !usePredefinedTimestamps && hasSameLabels(plugin, config);
+    }
+
+    /**
+     * Returns this table extended to the frames of {plugin}, labeling
+     * only the frames it does not hold yet.
+     */
+    TimeBarLabels extend(TimeBar_ plugin) {
+        return new TimeBarLabels(this, plugin);
+    }
+
+    private boolean hasSameLabels(TimeBar_ plugin, TimeBarConfiguration config) {
+        Calibration calibration = plugin.imp.getCalibration();
+        return this.frameOffset == config.frameOffset
+            && this.timeFormat == config.timeFormat
+            && this.showUnits == config.showUnits
+            && this.usePredefinedTimestamps == config.usePredefinedTimestamps
+            && this.timestamps == (config.usePredefinedTimestamps ? plugin.getTimestamps() : null)
+            && hasSamePlaneTimes(config.usePredefinedTimestamps ? null : plugin.getPlaneTimes(), config)
+            && this.boldText == config.boldText
+            && this.serifFont == config.serifFont
+            && this.fontSize == config.fontSize
+            && this.timeUnit.equals(calibration.getTimeUnit())
+            && this.frameInterval == calibration.frameInterval;
+    }
+
+    /**
+     * Returns true if the labels of {planeTimes} are the ones of this
+     * table, for the frames it holds: the same times, or these times
+     * extended to new frames. Offsets are scaled by the mean interval,
+     * which changes with every new frame, so extended times only keep
+     * the labels without an offset.
+     */
+    private boolean hasSamePlaneTimes(TimeBarPlaneTimes planeTimes, TimeBarConfiguration config) {
+        if (this.planeTimes == planeTimes)
+            return true;
+        return this.planeTimes != null && planeTimes != null && config.frameOffset == 0 && planeTimes.extendsTimes(this.planeTimes);
+    }
+
+    String getLabel(int frame) {
+        return labels[frame-1];
+    }
+}
@@ -0,0 +1,239 @@
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Rectangle;
+
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.gui.TextRoi;
+
+/**
+ * Immutable snapshot of the geometry and style of the timebar, for a
+ * given configuration and image.
+ *
+ * Nothing here depends on the frame: only the length of the bar, the
+ * label and the events active change from one frame to the next.
+ */
+class TimeBarLayout {
+
+    final Font font;
+    final Color color;
+    final Color bcolor;
+    final boolean hideBar;
+    final int nFrames;
+    final int innerMargin;
+    final int outerMargin;
+    final Rectangle background;
+    final Rectangle bar;
+    final Rectangle text;
+    final TimeBarEvents events;
+    final Rectangle phase;
+
+    // Everything the geometry depends on, besides the labels.
+    private final TimeBarLabels labels;
+    private final int imageWidth, imageHeight;
+    private final TimeBarLocation location;
+    private final int barThicknessInPixels;
+    private final TimeBarColor colorChoice, bcolorChoice;
+    private final Rectangle roi;
+    private final TimeBarPlaneTimes planeTimes;
+    private final double barDuration;
+    private final double frameIntervalInSeconds;
+
+    /**
+     * Takes a snapshot of the positions computed by the last call to
+     * {plugin.setElementsPositions()}.
+     */
+    TimeBarLayout(TimeBar_ plugin, TimeBarConfiguration config, TimeBarLabels labels, Font font) {
+        this.font = font;
+        this.color = config.color.color;
+        this.bcolor = config.bcolor.color;
+        this.hideBar = config.hideBar;
+        this.nFrames = plugin.nFrames;
+        this.innerMargin = plugin.getInnerMarginSizeInPixels();
+        this.outerMargin = plugin.getOuterMarginSizeInPixels();
+        this.background = new Rectangle(plugin.hBackground);
+        this.bar = new Rectangle(plugin.hBar);
+        this.text = new Rectangle(plugin.hText);
+
+        this.labels = labels;
+        this.imageWidth = plugin.imp.getWidth();
+        this.imageHeight = plugin.imp.getHeight();
+        this.location = config.location;
+        this.barThicknessInPixels = config.barThicknessInPixels;
+        this.colorChoice = config.color;
+        this.bcolorChoice = config.bcolor;
+        this.roi = plugin.userRoiExists ? new Rectangle(plugin.roiX, plugin.roiY, plugin.roiWidth, plugin.roiHeight) : null;
+        this.planeTimes = plugin.getPlaneTimes();
+        this.barDuration = plugin.getBarDuration();
+        this.frameIntervalInSeconds = barDuration > 0 ? plugin.getFrameIntervalInSeconds() : 0;
+        this.events = plugin.getEvents();
+        this.phase = events == null ? null : getPhaseBounds();
+    }
+
+    /**
+     * Returns true if this layout was computed for the same labels,
+     * configuration and image as the ones given.
+     */
+    boolean isValidFor(TimeBar_ plugin, TimeBarConfiguration config, TimeBarLabels labels) {
+        Rectangle currentRoi = plugin.userRoiExists ? new Rectangle(plugin.roiX, plugin.roiY, plugin.roiWidth, plugin.roiHeight) : null;
+        return this.labels == labels
+            && this.imageWidth == plugin.imp.getWidth()
+            && this.imageHeight == plugin.imp.getHeight()
+            && this.location == config.location
+            && this.hideBar == config.hideBar
+            && this.barThicknessInPixels == config.barThicknessInPixels
+            && this.colorChoice == config.color
+            && this.bcolorChoice == config.bcolor
+            && this.planeTimes == plugin.getPlaneTimes()
+            && this.events == plugin.getEvents()
+            && this.barDuration == plugin.getBarDuration()
+            && (barDuration == 0 || this.frameIntervalInSeconds == plugin.getFrameIntervalInSeconds())
+            && (roi == null ? currentRoi == null : roi.equals(currentRoi));
+    }
+
+    /**
+     * Returns the part of the image that the timebar can draw into,
+     * whatever the frame.
+     * 
+     * Text may be drawn slightly outside of its rectangle, so the
+     * elements are padded by the font size.
+     */
+    Rectangle getDrawingBounds() {
+        Rectangle bounds = background.union(bar).union(text);
+        if (phase != null)
+            bounds = bounds.union(phase);
+        bounds.grow(font.getSize(), font.getSize());
+        return bounds.intersection(new Rectangle(0, 0, imageWidth, imageHeight));
+    }
+
+    /**
+     * Returns the length of the bar for {frame}, proportional to the time
+     * elapsed since the first frame when the acquisition times are known.
+     *
+     * In live mode, the full bar stands for a fixed duration rather than
+     * for the frames of the image, so that adding frames does not change
+     * the bars already drawn.
+     */
+    int getBarWidth(int frame) {
+        if (barDuration > 0) {
+            double elapsed = planeTimes != null ? planeTimes.getElapsedSeconds(frame) : (frame-1) * frameIntervalInSeconds;
+            return (int) (bar.width * Math.min(1, elapsed / barDuration));
+        }
+        if (planeTimes != null && planeTimes.getDuration() > 0)
+            return (int) (bar.width * planeTimes.getElapsedSeconds(frame) / planeTimes.getDuration());
+        return bar.width*(frame-1)/(nFrames-1);
+    }
+
+    /**
+     * Creates the ROIs of the timebar for {frame}, labeled with {label}.
+     *
+     * Pre-defined timestamps are free text and only change the label:
+     * the bar still grows linearly with {frame}, unless the acquisition
+     * times are read from the metadata.
+     */
+    Overlay createOverlay(String label, int frame) {
+        Overlay overlay = new Overlay();
+
+        if (bcolor != null)
+            overlay.add(createBackgroundRoi(), TimeBar_.TIME_BAR);
+
+        if (!hideBar)
+            overlay.add(createBarRoi(frame), TimeBar_.TIME_BAR);
+
+        overlay.add(createTextRoi(label), TimeBar_.TIME_BAR);
+
+        Overlay events = createEventsOverlay(frame);
+        if (events != null)
+            for (Roi roi : events)
+                overlay.add(roi, TimeBar_.TIME_BAR);
+
+        return overlay;
+    }
+
+    /**
+     * Returns the line where the names of the active events are written:
+     * below the background, or above it when there is no room below.
+     */
+    private Rectangle getPhaseBounds() {
+        int y = background.y + background.height;
+        if (y + font.getSize() > imageHeight)
+            y = background.y - font.getSize();
+        return new Rectangle(text.x, y, imageWidth - text.x, font.getSize());
+    }
+
+    /**
+     * Returns the x coordinate of the end of the bar at {frame}, clamped
+     * to the frames of the image.
+     */
+    private int getBarEnd(int frame) {
+        return bar.x + getBarWidth(Math.max(1, Math.min(nFrames, frame)));
+    }
+
+    /**
+     * Creates the ROIs of the events active at {frame}, or returns null if
+     * there are none: a tick mark where each event starts, a segment of
+     * the bar over the frames of events longer than a frame, and their
+     * names.
+     */
+    Overlay createEventsOverlay(int frame) {
+        if (events == null)
+            return null;
+        int[] active = events.getActive(frame);
+        if (active.length == 0)
+            return null;
+
+        Overlay overlay = new Overlay();
+        StringBuilder names = new StringBuilder();
+        Color nameColor = null;
+        for (int event : active) {
+            Color eventColor = events.getColor(event) != null ? events.getColor(event) : color;
+            if (!hideBar) {
+                int start = getBarEnd(events.getFirst(event));
+                if (events.getLast(event) > events.getFirst(event)) {
+                    // Segments take the lower half of the bar, so that its progress stays visible.
+                    int height = Math.max(1, bar.height / 2);
+                    Roi segment = new Roi(start, bar.y + bar.height - height, Math.max(1, getBarEnd(events.getLast(event)) - start), height);
+                    segment.setFillColor(eventColor);
+                    overlay.add(segment);
+                }
+                Roi tick = new Roi(start, bar.y - innerMargin / 2, 1, bar.height + innerMargin / 2);
+                tick.setFillColor(eventColor);
+                overlay.add(tick);
+            }
+            if (events.getName(event).isEmpty())
+                continue;
+            if (names.length() > 0)
+                names.append(", ");
+            names.append(events.getName(event));
+            if (nameColor == null)
+                nameColor = eventColor;
+        }
+
+        if (names.length() > 0) {
+            TextRoi nameRoi = new TextRoi(phase.x, phase.y, names.toString(), font);
+            nameRoi.setStrokeColor(nameColor);
+            if (bcolor != null)
+                nameRoi.setFillColor(bcolor);
+            overlay.add(nameRoi);
+        }
+        return overlay;
+    }
+
+    Roi createBackgroundRoi() {
+        Roi hBackgroundRoi = new Roi(background.x, background.y, background.width, background.height);
+        hBackgroundRoi.setFillColor(bcolor);
+        return hBackgroundRoi;
+    }
+
+    Roi createBarRoi(int frame) {
+        Roi hBarRoi = new Roi(bar.x, bar.y, getBarWidth(frame), bar.height);
+        hBarRoi.setFillColor(color);
+        return hBarRoi;
+    }
+
+    TextRoi createTextRoi(String label) {
+        TextRoi hTextRoi = new TextRoi(text.x, text.y, label, font);
+        hTextRoi.setStrokeColor(color);
+        return hTextRoi;
+    }
+}
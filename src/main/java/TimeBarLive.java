@@ -0,0 +1,82 @@
+import java.util.ArrayList;
+import java.util.List;
+
+import ij.ImageListener;
+import ij.ImagePlus;
+
+/**
+ * Keeps the timebar of an image up to date while frames are appended to
+ * it, as during an acquisition.
+ *
+ * Each time the image is updated with more frames, only the new frames
+ * are annotated: labels are added to the table of the plugin, and the
+ * bar stands for a fixed duration, so the frames already annotated are
+ * left untouched.
+ */
+class TimeBarLive implements ImageListener {
+
+    /** Images followed, one listener each. */
+    private static final List<TimeBarLive> ATTACHED = new ArrayList<TimeBarLive>();
+
+    private final TimeBar_ plugin;
+    private final ImagePlus imp;
+    private int nFrames;
+
+    private TimeBarLive(TimeBar_ plugin) {
+        this.plugin = plugin;
+        this.imp = plugin.imp;
+        this.nFrames = plugin.nFrames;
+    }
+
+    /**
+     * Annotates the frames appended to the image of {plugin} from now on,
+     * replacing any plugin that was following the same image.
+     */
+    static void attach(TimeBar_ plugin) {
+        detach(plugin.imp);
+        TimeBarLive live = new TimeBarLive(plugin);
+        synchronized (ATTACHED) {
+            ATTACHED.add(live);
+        }
+        ImagePlus.addImageListener(live);
+    }
+
+    /**
+     * Stops following {imp}.
+     */
+    static void detach(ImagePlus imp) {
+        synchronized (ATTACHED) {
+            for (int i = ATTACHED.size() - 1; i >= 0; --i) {
+                TimeBarLive live = ATTACHED.get(i);
+                if (live.imp == imp) {
+                    ImagePlus.removeImageListener(live);
+                    ATTACHED.remove(i);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void imageOpened(ImagePlus imp) {
+    }
+
+    @Override
+    public void imageClosed(ImagePlus imp) {
+        if (imp == this.imp)
+            detach(imp);
+    }
+
+    @Override
+    public void imageUpdated(ImagePlus imp) {
+        if (imp != this.imp)
+            return;
+        synchronized (this) {
+            // Drawing the timebar updates the image too: count the new
+            // frames as done first, so this is not called again for them.
+            if (imp.getNFrames() <= nFrames)
+                return;
+            nFrames = imp.getNFrames();
+            plugin.appendTimeBar();
+        }
+    }
+}
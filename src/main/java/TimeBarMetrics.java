@@ -0,0 +1,137 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import ij.IJ;
+
+/**
+ * Measures the wall time, number of calls and bytes allocated by each
+ * phase of the plugin, in debug mode ("Edit > Options > Misc...") or
+ * when the "timebar.metrics" system property is true.
+ *
+ * A phase is measured with:
+ *   long start = TimeBarMetrics.start();
+ *   try { ... } finally { TimeBarMetrics.stop(Phase.LABEL, start); }
+ *
+ * When disabled, start() and stop() only read a flag. Allocations are
+ * those of the calling thread, where the JVM can measure them. Nested
+ * phases are counted in the phases that contain them too.
+ */
+class TimeBarMetrics {
+
+    enum Phase {
+        LABEL("Time label"),
+        BOX_WIDTH("Box width"),
+        OVERLAY("Timebar overlay"),
+        DRAW_OVERLAY("Draw overlay"),
+        BURN("Burn-in"),
+        REPAINT("Repaint"),
+        UPDATE("Update timebar");
+
+        final String name;
+
+        Phase(String name) {
+            this.name = name;
+        }
+    }
+
+    /** Phases nested deeper than this are not measured. */
+    private static final int MAX_DEPTH = 16;
+
+    private static final boolean FORCED = Boolean.getBoolean("timebar.metrics");
+    private static final String CSV_PATH = System.getProperty("timebar.metrics.csv");
+
+    // Calls, nanoseconds and bytes of each phase.
+    private static final int N = Phase.values().length;
+    private static final AtomicLongArray TOTALS = new AtomicLongArray(3 * N);
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /** Allocated bytes of the calling thread at the start of each nested phase. */
+    private static final ThreadLocal<long[]> STARTS = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[MAX_DEPTH + 1];
+        }
+    };
+
+    static boolean isEnabled() {
+        return IJ.debugMode || FORCED;
+    }
+
+    /**
+     * Starts measuring a phase, and returns what stop() needs, or 0 if
+     * metrics are disabled.
+     */
+    static long start() {
+        if (!isEnabled())
+            return 0;
+        long[] starts = STARTS.get();
+        int depth = (int) starts[0]++;
+        if (depth < MAX_DEPTH)
+            starts[depth + 1] = getAllocatedBytes();
+        return System.nanoTime();
+    }
+
+    /**
+     * Ends measuring {phase}, started when start() returned {start}.
+     */
+    static void stop(Phase phase, long start) {
+        if (start == 0)
+            return;
+        long nanos = System.nanoTime() - start;
+        long[] starts = STARTS.get();
+        int depth = (int) --starts[0];
+        long bytes = depth < MAX_DEPTH ? getAllocatedBytes() - starts[depth + 1] : 0;
+
+        int i = 3 * phase.ordinal();
+        TOTALS.incrementAndGet(i);
+        TOTALS.addAndGet(i + 1, nanos);
+        TOTALS.addAndGet(i + 2, Math.max(0, bytes));
+    }
+
+    @SuppressWarnings("restriction")
+    private static long getAllocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return 0;
+    }
+
+    /**
+     * Writes the metrics measured since the last report to the Log, and
+     * appends them to the file of the "timebar.metrics.csv" system
+     * property if it is set, then starts over. Does nothing if metrics
+     * are disabled.
+     */
+    static void report(String title) {
+        if (!isEnabled())
+            return;
+
+        PrintWriter csv = null;
+        if (CSV_PATH != null) {
+            try {
+                csv = new PrintWriter(new FileWriter(CSV_PATH, true));
+            } catch (IOException e) {
+                IJ.log("Timebar plugin: Could not write metrics to " + CSV_PATH + ": " + e.getMessage());
+            }
+        }
+
+        IJ.log("Timebar metrics, " + title + ":");
+        for (Phase phase : Phase.values()) {
+            int i = 3 * phase.ordinal();
+            long calls = TOTALS.getAndSet(i, 0);
+            long nanos = TOTALS.getAndSet(i + 1, 0);
+            long bytes = TOTALS.getAndSet(i + 2, 0);
+            if (calls == 0)
+                continue;
+            IJ.log(String.format("  %s: %d calls, %.3f ms, %.1f KB allocated", phase.name, calls, nanos / 1e6, bytes / 1024.));
+            if (csv != null)
+                csv.println("\"" + title.replace("\"", "\"\"") + "\"," + phase.name + "," + calls + "," + nanos + "," + bytes);
+        }
+        if (csv != null)
+            csv.close();
+    }
+}
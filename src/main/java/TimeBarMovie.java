@@ -0,0 +1,137 @@
+import java.io.File;
+import java.io.IOException;
+
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.plugin.filter.AVI_Writer;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+
+/**
+ * Writes a movie of one channel and slice of an image, or of the
+ * composite of its active channels, with the timebar drawn on each frame.
+ *
+ * Frames are rendered to RGB as displayed, annotated and encoded in the
+ * pipeline of TimeBarStreamer, so rendering and encoding overlap and only
+ * a few frames are held in memory. The image itself is left untouched.
+ */
+class TimeBarMovie extends TimeBarStreamer {
+
+    static final String[] FORMATS = {"AVI (JPEG)", "AVI (uncompressed)", "PNG sequence"};
+
+    private final int channel, slice;
+
+    /**
+     * Creates a movie of {slice} and {channel} of {imp}, or of the
+     * composite of the active channels if {channel} is 0.
+     */
+    TimeBarMovie(ImagePlus imp, TimeBarLayout layout, TimeBarLabels labels, int channel, int slice) {
+        super(imp, layout, labels, imp.getNFrames(), "frames");
+        this.channel = channel;
+        this.slice = slice;
+    }
+
+    @Override
+    ImageProcessor readPlane(int frame) {
+        if (channel == 0 && imp.isComposite())
+            return readComposite(frame);
+        int c = channel == 0 ? imp.getC() : channel;
+        return toRGB(imp.getStack().getProcessor(imp.getStackIndex(c, slice, frame)), c);
+    }
+
+    @Override
+    int getFrame(int frame) {
+        return frame;
+    }
+
+    /**
+     * Adds up the active channels of {frame}, each rendered with its own
+     * LUT, as the composite display mode does.
+     */
+    private ImageProcessor readComposite(int frame) {
+        boolean[] active = ((CompositeImage) imp).getActiveChannels();
+        ColorProcessor sum = new ColorProcessor(imp.getWidth(), imp.getHeight());
+        int[] sumPixels = (int[]) sum.getPixels();
+        for (int c = 1; c <= imp.getNChannels(); ++c) {
+            if (!active[c-1])
+                continue;
+            int[] pixels = (int[]) toRGB(imp.getStack().getProcessor(imp.getStackIndex(c, slice, frame)), c).getPixels();
+            for (int i = 0; i < sumPixels.length; ++i) {
+                int a = sumPixels[i], b = pixels[i];
+                int r = Math.min(255, ((a >> 16) & 0xff) + ((b >> 16) & 0xff));
+                int g = Math.min(255, ((a >> 8) & 0xff) + ((b >> 8) & 0xff));
+                int bl = Math.min(255, (a & 0xff) + (b & 0xff));
+                sumPixels[i] = 0xff000000 | (r << 16) | (g << 8) | bl;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Renders {ip}, a plane of channel {c}, to a new RGB processor, with
+     * the LUT and display range it is shown with.
+     */
+    private ImageProcessor toRGB(ImageProcessor ip, int c) {
+        if (ip instanceof ColorProcessor)
+            return ip.duplicate();
+        if (imp.isComposite()) {
+            LUT lut = ((CompositeImage) imp).getChannelLut(c);
+            if (imp.getCompositeMode() != IJ.GRAYSCALE)
+                ip.setColorModel(lut);
+            ip.setMinAndMax(lut.min, lut.max);
+        } else {
+            ip.setColorModel(imp.getProcessor().getColorModel());
+            ip.setMinAndMax(imp.getDisplayRangeMin(), imp.getDisplayRangeMax());
+        }
+        return ip.convertToRGB();
+    }
+
+    /**
+     * Writes the movie to an AVI file at {path}, compressed as JPEG if
+     * {jpeg} is true, played at {fps} frames per second.
+     */
+    void saveAsAvi(String path, boolean jpeg, double fps) throws IOException {
+        start();
+        try {
+            ImagePlus movie = new ImagePlus(imp.getShortTitle(), new DrawnStack(imp.getWidth(), imp.getHeight()));
+            movie.getCalibration().fps = fps;
+            new AVI_Writer().writeImage(movie, path, jpeg ? AVI_Writer.JPEG_COMPRESSION : AVI_Writer.NO_COMPRESSION, FileSaver.getJpegQuality());
+        } catch (RuntimeException e) {
+            // Failures of the pipeline reach the encoder as runtime exceptions.
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw e;
+        } finally {
+            stop();
+        }
+        report();
+    }
+
+    /**
+     * Writes the movie to one PNG file per frame in {directory}.
+     */
+    void saveAsPngSequence(String directory) throws IOException {
+        String name = imp.getShortTitle();
+        int nFrames = imp.getNFrames();
+        int digits = Math.max(4, String.valueOf(nFrames).length());
+
+        start();
+        try {
+            for (int t = 1; t <= nFrames; ++t) {
+                String path = directory + File.separator + name + "_" + IJ.pad(t, digits) + ".png";
+                if (!new FileSaver(new ImagePlus(name, take(t))).saveAsPng(path))
+                    throw new IOException("Could not write " + path);
+            }
+        } finally {
+            stop();
+        }
+        report();
+    }
+
+    private void report() {
+        IJ.showStatus(String.format("Time Bar: %d frames written, %.1f frames/s", imp.getNFrames(), getRate(imp.getNFrames())));
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+/**
+ * Draws the timebar of one plugin instance on several images at once,
+ * such as the positions of a multi-position acquisition.
+ *
+ * Images with the same size, number of frames and frame calibration have
+ * the same labels and layout, so these are computed once per group of
+ * such images, and shared by the plugin instances of the group. Images
+ * are then drawn concurrently, by a bounded number of threads.
+ */
+class TimeBarMultiImage {
+
+    private TimeBarMultiImage() {
+    }
+
+    /**
+     * Returns the key of the group of {imp}: images with the same key can
+     * share their labels and layout.
+     */
+    static String getGroupKey(ImagePlus imp) {
+        return imp.getWidth() + "x" + imp.getHeight() + "x" + imp.getNFrames()
+            + " " + imp.getCalibration().frameInterval + " " + imp.getCalibration().getTimeUnit();
+    }
+
+    /**
+     * Draws the timebar of {template} on {images}, with {nThreads}
+     * threads, and returns the number of images drawn. The image of
+     * {template} is drawn by {template} itself.
+     *
+     * Images without multiple frames, and virtual stacks when the timebar
+     * is burned in, are reported in the log and skipped.
+     */
+    static int annotate(TimeBar_ template, List<ImagePlus> images, boolean burnIn, boolean liveMode, int nThreads) throws InterruptedException {
+        // One plugin per image, the first of each group computing the
+        // labels and layout the others share.
+        Map<String, TimeBar_> groups = new LinkedHashMap<String, TimeBar_>();
+        groups.put(getGroupKey(template.imp), template);
+        final List<TimeBar_> plugins = new ArrayList<TimeBar_>();
+        for (ImagePlus imp : images) {
+            if (imp.getNFrames() <= 1 || (burnIn && imp.getStack().isVirtual())) {
+                IJ.log("Timebar plugin: Skipping " + imp.getTitle() + ", " + (imp.getNFrames() <= 1 ? "it has a single frame" : "it is a virtual stack"));
+                continue;
+            }
+            if (imp == template.imp) {
+                plugins.add(template);
+                continue;
+            }
+            TimeBar_ plugin = new TimeBar_(imp, template);
+            if (!groups.containsKey(getGroupKey(imp)))
+                groups.put(getGroupKey(imp), plugin);
+            plugins.add(plugin);
+        }
+
+        for (TimeBar_ first : groups.values()) {
+            try {
+                first.getLayout();
+            } catch (TimeBar_.MissingRoiException e) {
+                // The timebar is simply not drawn.
+            }
+        }
+        for (TimeBar_ plugin : plugins)
+            plugin.shareFrom(groups.get(getGroupKey(plugin.imp)));
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, nThreads));
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        try {
+            for (final TimeBar_ plugin : plugins) {
+                // Images are drawn in parallel, so each one by a single thread.
+                plugin.nThreads = 1;
+                results.add(executor.submit(new Runnable() {
+                    public void run() {
+                        plugin.updateTimeBar(false);
+                    }
+                }));
+            }
+
+            int done = 0;
+            for (int i = 0; i < results.size(); ++i) {
+                try {
+                    results.get(i).get();
+                    if (liveMode)
+                        TimeBarLive.attach(plugins.get(i));
+                    ++done;
+                } catch (ExecutionException e) {
+                    IJ.log("Timebar plugin: Could not annotate " + plugins.get(i).imp.getTitle() + ": " + e.getCause());
+                }
+                IJ.showProgress(i + 1, results.size());
+            }
+            return done;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
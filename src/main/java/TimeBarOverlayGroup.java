@@ -0,0 +1,82 @@
+import java.util.ArrayList;
+import java.util.List;
+
+import ij.gui.Overlay;
+import ij.gui.Roi;
+
+/**
+ * The ROIs a plugin instance added to the overlay of an image, so that
+ * they can be removed without searching the whole overlay.
+ *
+ * ROIs are added at the end of the overlay, and removed from its end, so
+ * as long as nothing was added after them, removing them takes a time
+ * proportional to their number only. Otherwise, the overlay is searched
+ * for them, as it is the first time, for ROIs added by another instance.
+ *
+ * ROIs of the plugin are marked with the {MARK} property, or carry the
+ * descriptor of a TimeBarRoi. User ROIs that happen to have the same
+ * name are left alone.
+ */
+class TimeBarOverlayGroup {
+
+    static final String MARK = "TimeBarGroup";
+
+    private final List<Roi> rois = new ArrayList<Roi>();
+    private Overlay overlay;
+    private int start;
+
+    /**
+     * Adds {roi} to the end of {overlay}, as a ROI of the plugin.
+     */
+    void add(Overlay overlay, Roi roi) {
+        if (overlay != this.overlay || rois.isEmpty()) {
+            this.overlay = overlay;
+            this.start = overlay.size();
+            rois.clear();
+        }
+        if (!(roi instanceof TimeBarRoi))
+            roi.setProperty(MARK, "true");
+        overlay.add(roi);
+        rois.add(roi);
+    }
+
+    /**
+     * Removes the ROIs of the plugin from {overlay}.
+     */
+    void removeFrom(Overlay overlay) {
+        if (overlay == this.overlay && rois.isEmpty())
+            return; // Already searched, and nothing added since.
+        if (overlay == this.overlay && isAtEnd()) {
+            for (int i = overlay.size() - 1; i >= start; --i)
+                overlay.remove(i);
+        } else {
+            Roi[] all = overlay.toArray();
+            overlay.clear();
+            for (Roi roi : all)
+                if (!isFromPlugin(roi))
+                    overlay.add(roi);
+        }
+        rois.clear();
+        this.overlay = overlay;
+    }
+
+    /**
+     * Returns true if the ROIs of this group are still the last ones of
+     * the overlay, in the order they were added.
+     */
+    private boolean isAtEnd() {
+        if (overlay.size() != start + rois.size())
+            return false;
+        for (int i = 0; i < rois.size(); ++i)
+            if (overlay.get(start + i) != rois.get(i))
+                return false;
+        return true;
+    }
+
+    /**
+     * Returns true if {roi} was added to an overlay by the plugin.
+     */
+    static boolean isFromPlugin(Roi roi) {
+        return roi instanceof TimeBarRoi || roi.getProperty(MARK) != null || TimeBarRoi.readDescriptor(roi) != null;
+    }
+}
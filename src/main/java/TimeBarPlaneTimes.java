@@ -0,0 +1,279 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Acquisition time of every frame, read once from the metadata of an
+ * image, for stacks whose frames are not evenly spaced in time.
+ *
+ * Times are looked up, in this order, in the OME-XML planes of the image
+ * info (DeltaT attributes), in "DeltaT" or "Timestamp" entries of the
+ * image info, as written by Bio-Formats, and in "DeltaT=" or "time="
+ * slice labels. Times are kept in seconds, and must not decrease from
+ * one frame to the next.
+ *
+ * When frames are appended to an image whose times come from its slice
+ * labels, as in live mode, canExtendTo() returns true and extend() only
+ * reads the labels of the new frames. Like TimeBarLabels, extended times
+ * share the array of the times they extend, which grows by doubling.
+ */
+class TimeBarPlaneTimes {
+
+    private static final Pattern OME_PLANE = Pattern.compile("<(?:\\w+:)?Plane\\b([^>]*)>");
+    private static final Pattern XML_ATTRIBUTE = Pattern.compile("(\\w+)\\s*=\\s*\"([^\"]*)\"");
+    private static final Pattern INFO_ENTRY = Pattern.compile(
+        "(?i)^\\s*(.*\\b(?:deltat|timestamp|time stamp)\\b.*?)\\s*[=:]\\s*([-+]?[0-9]*\\.?[0-9]+(?:e[-+]?[0-9]+)?)\\s*(ms|s|sec|min|h)?\\s*$");
+    private static final Pattern LAST_NUMBER = Pattern.compile("([0-9]+)\\D*$");
+    private static final Pattern SLICE_LABEL = Pattern.compile(
+        "(?i)\\b(?:deltat|time)\\s*=\\s*([-+]?[0-9]*\\.?[0-9]+(?:e[-+]?[0-9]+)?)\\s*(ms|s|sec|min|h)?\\b");
+
+    /** Time of each frame, in seconds, or null if not found. */
+    private final double[] times;
+
+    // What the times were read from.
+    private final ImageStack stack;
+    private final String info;
+    private final int nFrames;
+    private final boolean fromSliceLabels;
+
+    /** The times this object extends, or itself if it was read at once. */
+    private final TimeBarPlaneTimes origin;
+
+    private TimeBarPlaneTimes(double[] times, ImageStack stack, String info, int nFrames, boolean fromSliceLabels, TimeBarPlaneTimes origin) {
+        this.times = times;
+        this.stack = stack;
+        this.info = info;
+        this.nFrames = nFrames;
+        this.fromSliceLabels = fromSliceLabels;
+        this.origin = origin == null ? this : origin;
+    }
+
+    /**
+     * Reads the time of every frame of {imp} from its metadata. If the
+     * metadata does not hold the time of every frame, the result is not
+     * complete.
+     */
+    static TimeBarPlaneTimes read(ImagePlus imp) {
+        String info = imp.getInfoProperty();
+        double[] times = null;
+        if (info != null) {
+            times = readOmePlanes(info, imp.getNFrames());
+            if (times == null)
+                times = readInfoEntries(info, imp);
+        }
+        boolean fromSliceLabels = times == null;
+        if (times == null)
+            times = readSliceLabels(imp);
+
+        if (times != null)
+            for (int i = 1; i < times.length; ++i)
+                if (!(times[i] >= times[i-1])) {
+                    times = null;
+                    break;
+                }
+        return new TimeBarPlaneTimes(times, imp.getStack(), info, imp.getNFrames(), fromSliceLabels, null);
+    }
+
+    /**
+     * Returns true if {imp} only has more frames than the ones these
+     * times were read from, so that extend() can read their times.
+     */
+    boolean canExtendTo(ImagePlus imp) {
+        String currentInfo = imp.getInfoProperty();
+        return times != null && fromSliceLabels
+            && stack == imp.getStack()
+            && nFrames < imp.getNFrames()
+            && (info == null ? currentInfo == null : info.equals(currentInfo));
+    }
+
+    /**
+     * Returns these times extended to the frames of {imp}, reading the
+     * slice labels of the new frames only. The result is not complete if
+     * a new frame has no time, or an earlier time than the frame before.
+     */
+    TimeBarPlaneTimes extend(ImagePlus imp) {
+        int newFrames = imp.getNFrames();
+        double[] extended = newFrames <= times.length ? times : Arrays.copyOf(times, Math.max(newFrames, 2 * times.length));
+        ImageStack stack = imp.getStack();
+        for (int t = nFrames + 1; t <= newFrames; ++t) {
+            for (int c = 1; c <= imp.getNChannels(); ++c) {
+                for (int z = 1; z <= imp.getNSlices(); ++z) {
+                    String label = stack.getSliceLabel(imp.getStackIndex(c, z, t));
+                    Matcher time = label == null ? null : SLICE_LABEL.matcher(label);
+                    if (time == null || !time.find())
+                        return new TimeBarPlaneTimes(null, stack, info, newFrames, true, null);
+                    if (c == 1 && z == 1)
+                        extended[t-1] = Double.parseDouble(time.group(1)) * getUnitInSeconds(time.group(2));
+                }
+            }
+            if (!(extended[t-1] >= extended[t-2]))
+                return new TimeBarPlaneTimes(null, stack, info, newFrames, true, null);
+        }
+        return new TimeBarPlaneTimes(extended, stack, info, newFrames, true, origin);
+    }
+
+    /**
+     * Returns true if these times are {other}, or were extended from it.
+     */
+    boolean extendsTimes(TimeBarPlaneTimes other) {
+        return other != null && origin == other.origin && nFrames >= other.nFrames;
+    }
+
+    /**
+     * Returns true if these times were read from the current metadata
+     * of {imp}.
+     */
+    boolean isReadFrom(ImagePlus imp) {
+        String currentInfo = imp.getInfoProperty();
+        return stack == imp.getStack()
+            && nFrames == imp.getNFrames()
+            && (info == null ? currentInfo == null : info.equals(currentInfo));
+    }
+
+    /**
+     * Returns true if the time of every frame was found.
+     */
+    boolean isComplete() {
+        return times != null;
+    }
+
+    /**
+     * Returns the time elapsed between the first frame and {frame}, in
+     * seconds.
+     */
+    double getElapsedSeconds(int frame) {
+        return times[frame-1] - times[0];
+    }
+
+    /**
+     * Returns the time elapsed between the first and the last frame, in
+     * seconds.
+     */
+    double getDuration() {
+        return times[nFrames-1] - times[0];
+    }
+
+    /**
+     * Returns the mean time between two frames, in seconds.
+     */
+    double getMeanInterval() {
+        return nFrames > 1 ? getDuration() / (nFrames - 1) : 0;
+    }
+
+    /**
+     * Returns the last frame acquired at or before {elapsedSeconds}
+     * after the first frame, or the first frame if {elapsedSeconds} is
+     * negative.
+     */
+    int getFrame(double elapsedSeconds) {
+        int i = Arrays.binarySearch(times, 0, nFrames, times[0] + elapsedSeconds);
+        if (i < 0)
+            i = -i - 2;
+        else // Several frames may share a time: keep the last one.
+            while (i + 1 < nFrames && times[i+1] == times[i])
+                ++i;
+        return Math.max(0, i) + 1;
+    }
+
+    private static double[] readOmePlanes(String info, int nFrames) {
+        double[] times = new double[nFrames];
+        boolean[] found = new boolean[nFrames];
+        int count = 0;
+
+        Matcher plane = OME_PLANE.matcher(info);
+        while (plane.find()) {
+            Map<String, String> attributes = new TreeMap<String, String>();
+            Matcher attribute = XML_ATTRIBUTE.matcher(plane.group(1));
+            while (attribute.find())
+                attributes.put(attribute.group(1), attribute.group(2));
+
+            // Keep the first channel and slice of each frame.
+            String deltaT = attributes.get("DeltaT");
+            if (deltaT == null || !"0".equals(attributes.getOrDefault("TheC", "0")) || !"0".equals(attributes.getOrDefault("TheZ", "0")))
+                continue;
+            try {
+                int t = Integer.parseInt(attributes.getOrDefault("TheT", "0"));
+                if (t < 0 || t >= nFrames || found[t])
+                    continue;
+                times[t] = Double.parseDouble(deltaT) * getUnitInSeconds(attributes.getOrDefault("DeltaTUnit", "s"));
+                found[t] = true;
+                ++count;
+            } catch (NumberFormatException e) {
+                continue;
+            }
+        }
+        return count == nFrames ? times : null;
+    }
+
+    private static double[] readInfoEntries(String info, ImagePlus imp) {
+        TreeMap<Long, Double> entries = new TreeMap<Long, Double>();
+        for (String line : info.split("\n")) {
+            Matcher entry = INFO_ENTRY.matcher(line);
+            if (!entry.matches())
+                continue;
+            Matcher index = LAST_NUMBER.matcher(entry.group(1));
+            if (!index.find())
+                continue;
+            try {
+                entries.put(Long.parseLong(index.group(1)), Double.parseDouble(entry.group(2)) * getUnitInSeconds(entry.group(3)));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+        }
+
+        double[] values = new double[entries.size()];
+        int i = 0;
+        for (double value : entries.values())
+            values[i++] = value;
+        return toFrameTimes(values, imp);
+    }
+
+    private static double[] readSliceLabels(ImagePlus imp) {
+        ImageStack stack = imp.getStack();
+        double[] values = new double[stack.getSize()];
+        for (int i = 1; i <= stack.getSize(); ++i) {
+            String label = stack.getSliceLabel(i);
+            Matcher time = label == null ? null : SLICE_LABEL.matcher(label);
+            if (time == null || !time.find())
+                return null;
+            values[i-1] = Double.parseDouble(time.group(1)) * getUnitInSeconds(time.group(2));
+        }
+        return toFrameTimes(values, imp);
+    }
+
+    /**
+     * Returns the time of each frame, given the time of each frame or of
+     * each plane in {values}.
+     */
+    private static double[] toFrameTimes(double[] values, ImagePlus imp) {
+        int nFrames = imp.getNFrames();
+        if (values.length == nFrames)
+            return values;
+        if (values.length != imp.getStackSize())
+            return null;
+        double[] times = new double[nFrames];
+        for (int t = 1; t <= nFrames; ++t)
+            times[t-1] = values[imp.getStackIndex(1, 1, t) - 1];
+        return times;
+    }
+
+    private static double getUnitInSeconds(String unit) {
+        if (unit == null)
+            return 1;
+        switch (unit.toLowerCase()) {
+            case "ms":
+                return 0.001;
+            case "min":
+                return 60;
+            case "h":
+                return 3600;
+            default:
+                return 1;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+import java.awt.EventQueue;
+import java.util.concurrent.CancellationException;
+
+import ij.IJ;
+import ij.gui.MultiLineLabel;
+
+/**
+ * Draws the preview of the dialog on a background thread, so that the
+ * dialog stays responsive whatever the number of frames.
+ *
+ * Changes made in quick succession are coalesced: only the latest
+ * configuration is drawn, once the dialog has been left alone for a
+ * short delay, and a preview still being drawn when a new change
+ * arrives is cancelled by interrupting the thread.
+ */
+class TimeBarPreview implements Runnable {
+
+    /** Time without changes to wait for before drawing the preview. */
+    private static final long DELAY_MILLIS = 80;
+
+    private final TimeBar_ plugin;
+    private final Object lock = new Object();
+    private Thread thread;
+
+    // The latest request, guarded by lock.
+    private TimeBarConfiguration pending;
+    private double pendingJumpTime;
+    private MultiLineLabel pendingMessage;
+    private long pendingTime;
+    private boolean drawing;
+    private boolean stopped;
+
+    TimeBarPreview(TimeBar_ plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Asks for the preview of {config}, at the frame shown at
+     * {jumpTime} unless it is NaN. The labels of the first and last
+     * frames are then written into {message}.
+     */
+    void request(TimeBarConfiguration config, double jumpTime, MultiLineLabel message) {
+        synchronized (lock) {
+            if (stopped)
+                return;
+            pending = config;
+            pendingJumpTime = jumpTime;
+            pendingMessage = message;
+            pendingTime = System.currentTimeMillis();
+            if (thread == null) {
+                thread = new Thread(this, "TimeBar preview");
+                thread.setDaemon(true);
+                thread.start();
+            } else if (drawing) {
+                thread.interrupt();
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Cancels the pending and running previews, and waits for the thread
+     * to end, so that the plugin can be used from the calling thread.
+     */
+    void stop() {
+        Thread thread;
+        synchronized (lock) {
+            stopped = true;
+            pending = null;
+            thread = this.thread;
+            if (thread != null)
+                thread.interrupt();
+            lock.notifyAll();
+        }
+        if (thread == null)
+            return;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run() {
+        while (true) {
+            TimeBarConfiguration config;
+            double jumpTime;
+            MultiLineLabel message;
+            synchronized (lock) {
+                try {
+                    while (!stopped) {
+                        long wait = pending == null ? 0 : pendingTime + DELAY_MILLIS - System.currentTimeMillis();
+                        if (pending != null && wait <= 0)
+                            break;
+                        lock.wait(Math.max(0, wait));
+                    }
+                } catch (InterruptedException e) {
+                    continue; // Interrupted by a request or stop(): check again.
+                }
+                if (stopped)
+                    return;
+                config = pending;
+                jumpTime = pendingJumpTime;
+                message = pendingMessage;
+                pending = null;
+                drawing = true;
+            }
+
+            try {
+                draw(config, jumpTime, message);
+            } catch (CancellationException e) {
+                // A newer request replaces this one.
+            } catch (RuntimeException e) {
+                // Keep the thread alive for the next requests, which may
+                // not fail.
+                IJ.handleException(e);
+            } finally {
+                synchronized (lock) {
+                    drawing = false;
+                }
+                Thread.interrupted();
+            }
+        }
+    }
+
+    /**
+     * Throws if a newer request or stop() cancelled the preview. Changing
+     * the displayed frame may clear the interrupt status of the thread,
+     * so it cannot be relied on there.
+     */
+    private void checkCancelled() {
+        synchronized (lock) {
+            if (stopped || pending != null)
+                throw new CancellationException();
+        }
+    }
+
+    private void draw(TimeBarConfiguration config, double jumpTime, final MultiLineLabel message) {
+        plugin.applyConfiguration(config);
+        if (!Double.isNaN(jumpTime)) {
+            plugin.jumpToFrame(plugin.getFrameAtTime(jumpTime));
+            checkCancelled();
+        }
+
+        final String text;
+        if (config.usePredefinedTimestamps && plugin.getTimestamps().size() != plugin.nFrames)
+            text = "First frame: INVALID PRE-DEFINED\n" +
+                   "Last frame: INVALID PRE-DEFINED";
+        else
+            text = "First frame: " + plugin.getTimeLabel(1) + "\n" +
+                   "Last frame: " + plugin.getTimeLabel(plugin.nFrames);
+
+        plugin.updateTimeBar(true);
+
+        EventQueue.invokeLater(new Runnable() {
+            public void run() {
+                message.setText(text);
+            }
+        });
+    }
+}
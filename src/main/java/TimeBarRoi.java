@@ -0,0 +1,198 @@
+import java.awt.Graphics;
+import java.awt.Rectangle;
+
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+/**
+ * A ROI that draws the timebar of one frame when it is painted.
+ *
+ * The bar and label are created when the ROI is painted, from the layout
+ * and label table of the plugin, so the Overlay holds one light ROI per
+ * frame instead of the ROIs of every timebar. Like the static ROIs, it
+ * is positioned on its frame, and moves what it draws with its location:
+ * ImageJ flattens a plane of a stack by moving the ROIs of the other
+ * planes out of the image. The preview uses a single ROI without a frame, which
+ * draws the frame the image displays.
+ *
+ * When saved, this ROI is written as a rectangle that carries the
+ * configuration under the {DESCRIPTOR} property. The plugin reads it
+ * back when run again on the image, and restore() turns the rectangles
+ * back into TimeBarRois when an image is opened. The layout and labels
+ * are not serialized either: they are built again from the descriptor
+ * for the image the ROI is drawn on.
+ */
+class TimeBarRoi extends Roi {
+
+    private static final long serialVersionUID = 1L;
+
+    static final String DESCRIPTOR = "TimeBar";
+
+    private transient TimeBarLayout layout;
+    private transient TimeBarLabels labels;
+    private final int frame;
+
+    // Plugin instance the last ROIs without layout were built from, and
+    // its descriptor, shared by all the ROIs of an image.
+    private static TimeBar_ rebuilt;
+    private static String rebuiltOptions;
+
+    static {
+        ImagePlus.addImageListener(new ImageListener() {
+            public void imageOpened(ImagePlus imp) {
+                restore(imp);
+            }
+
+            public void imageClosed(ImagePlus imp) {
+            }
+
+            public void imageUpdated(ImagePlus imp) {
+            }
+        });
+    }
+
+    /**
+     * Creates the ROI drawing {frame}, or the displayed frame if {frame}
+     * is 0, and stores the {options} of its configuration.
+     */
+    TimeBarRoi(TimeBarLayout layout, TimeBarLabels labels, String options, int frame) {
+        super(getBounds(layout));
+        this.layout = layout;
+        this.labels = labels;
+        this.frame = frame;
+        setName(TimeBar_.TIME_BAR);
+        setProperty(DESCRIPTOR, options);
+    }
+
+    private static Rectangle getBounds(TimeBarLayout layout) {
+        if (layout.bcolor != null)
+            return layout.background;
+        return layout.bar.union(layout.text);
+    }
+
+    /**
+     * Returns the frame to draw: the frame of this ROI, or the one
+     * displayed by the image if it has none.
+     */
+    int getFrame() {
+        if (!rebuild())
+            return 0;
+        int frame = this.frame;
+        if (frame == 0)
+            frame = imp != null ? imp.getFrame() : 1;
+        return Math.min(Math.max(frame, 1), layout.nFrames);
+    }
+
+    /**
+     * Creates the ROIs of the timebar for {frame}, as they would have been
+     * added to the Overlay without this ROI, and moves them with it.
+     */
+    Overlay createFrameOverlay(int frame) {
+        if (!rebuild())
+            return new Overlay();
+        Overlay overlay = layout.createOverlay(labels.getLabel(frame), frame);
+        Rectangle from = getBounds(layout);
+        Rectangle to = getBounds();
+        if (to.x != from.x || to.y != from.y)
+            overlay.translate(to.x - from.x, to.y - from.y);
+        return overlay;
+    }
+
+    @Override
+    public void drawOverlay(Graphics g) {
+        ImagePlus image = imp;
+        for (Roi roi : createFrameOverlay(getFrame())) {
+            roi.setImage(image);
+            roi.drawOverlay(g);
+        }
+    }
+
+    @Override
+    public void drawPixels(ImageProcessor ip) {
+        ip.drawOverlay(createFrameOverlay(getFrame()));
+    }
+
+    /**
+     * Builds the layout and labels again from the descriptor, for the
+     * image of this ROI, if they were lost by serialization. Returns
+     * false if they cannot be built.
+     */
+    private boolean rebuild() {
+        if (layout != null)
+            return true;
+        TimeBar_ plugin = getPlugin(imp, getProperty(DESCRIPTOR));
+        if (plugin == null)
+            return false;
+        layout = plugin.layout;
+        labels = plugin.labels;
+        return true;
+    }
+
+    /**
+     * Returns a plugin instance with the layout and labels of {options}
+     * on {imp}, or null if they cannot be built.
+     */
+    private static synchronized TimeBar_ getPlugin(ImagePlus imp, String options) {
+        if (imp == null || options == null)
+            return null;
+        if (rebuilt != null && rebuilt.imp == imp && options.equals(rebuiltOptions))
+            return rebuilt;
+        TimeBar_ plugin = new TimeBar_(imp, TimeBarConfiguration.fromOptions(options));
+        try {
+            plugin.getLayout();
+        } catch (TimeBar_.MissingRoiException e) {
+            return null; // The selection the timebar was at is gone.
+        }
+        rebuilt = plugin;
+        rebuiltOptions = options;
+        return plugin;
+    }
+
+    /**
+     * Replaces the rectangles that TimeBarRois were saved as in the
+     * overlay of {imp} with TimeBarRois again, at the same location and
+     * position.
+     */
+    static void restore(ImagePlus imp) {
+        Overlay overlay = imp.getOverlay();
+        if (overlay == null)
+            return;
+        for (int i = 0; i < overlay.size(); ++i) {
+            Roi roi = overlay.get(i);
+            if (roi instanceof TimeBarRoi || readDescriptor(roi) == null)
+                continue;
+            String options = roi.getProperty(DESCRIPTOR);
+            TimeBar_ plugin = getPlugin(imp, options);
+            if (plugin == null)
+                return;
+            int frame = 0;
+            if (roi.hasHyperStackPosition())
+                frame = roi.getTPosition();
+            else if (roi.getPosition() > 0 && roi.getPosition() <= imp.getStackSize())
+                frame = imp.convertIndexToPosition(roi.getPosition())[2];
+            TimeBarRoi timeBar = new TimeBarRoi(plugin.layout, plugin.labels, options, frame);
+            if (roi.hasHyperStackPosition())
+                timeBar.setPosition(roi.getCPosition(), roi.getZPosition(), roi.getTPosition());
+            else
+                timeBar.setPosition(roi.getPosition());
+            timeBar.setLocation(roi.getXBase(), roi.getYBase());
+            overlay.set(timeBar, i);
+        }
+    }
+
+    /**
+     * Returns the configuration stored in {roi} by a TimeBarRoi, or null
+     * if {roi} was not created by this plugin.
+     */
+    static TimeBarConfiguration readDescriptor(Roi roi) {
+        if (!TimeBar_.TIME_BAR.equals(roi.getName()))
+            return null;
+        String options = roi.getProperty(DESCRIPTOR);
+        if (options == null)
+            return null;
+        return TimeBarConfiguration.fromOptions(options);
+    }
+}
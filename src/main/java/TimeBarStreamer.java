@@ -0,0 +1,255 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.io.FileInfo;
+import ij.io.FileSaver;
+import ij.io.TiffEncoder;
+import ij.process.ImageProcessor;
+
+/**
+ * Burns the timebar into the planes of a stack that cannot be modified in
+ * memory, such as a virtual stack, and writes the annotated planes to
+ * disk.
+ *
+ * Reading, drawing and writing run in a pipeline of three threads linked
+ * by small bounded queues, so only a few planes are held in memory
+ * whatever the size of the stack.
+ */
+class TimeBarStreamer {
+
+    /** Planes held by each queue of the pipeline. */
+    private static final int QUEUE_CAPACITY = 4;
+
+    private static final Plane END = new Plane(-1, null);
+
+    private static class Plane {
+        final int index;
+        final ImageProcessor ip;
+
+        Plane(int index, ImageProcessor ip) {
+            this.index = index;
+            this.ip = ip;
+        }
+    }
+
+    final ImagePlus imp;
+    private final TimeBarLayout layout;
+    private final TimeBarLabels labels;
+    private final int nPlanes;
+    private final String unit;
+
+    private final BlockingQueue<Plane> read = new ArrayBlockingQueue<Plane>(QUEUE_CAPACITY);
+    private final BlockingQueue<Plane> drawn = new ArrayBlockingQueue<Plane>(QUEUE_CAPACITY);
+    private volatile Throwable failure;
+    private volatile boolean stopped;
+    private long startTime;
+
+    TimeBarStreamer(ImagePlus imp, TimeBarLayout layout, TimeBarLabels labels) {
+        this(imp, layout, labels, imp.getStackSize(), "planes");
+    }
+
+    /**
+     * Creates a streamer of {nPlanes} planes, read by readPlane(), and
+     * counted as {unit} in the progress reports.
+     */
+    TimeBarStreamer(ImagePlus imp, TimeBarLayout layout, TimeBarLabels labels, int nPlanes, String unit) {
+        this.imp = imp;
+        this.layout = layout;
+        this.labels = labels;
+        this.nPlanes = nPlanes;
+        this.unit = unit;
+    }
+
+    /**
+     * Returns a processor holding plane {i}, which the timebar can be
+     * drawn into.
+     */
+    ImageProcessor readPlane(int i) {
+        return imp.getStack().getProcessor(i);
+    }
+
+    /**
+     * Returns the frame of plane {i}.
+     */
+    int getFrame(int i) {
+        return imp.convertIndexToPosition(i)[2];
+    }
+
+    /**
+     * Writes the annotated planes to a multipage TIFF file at {path}.
+     */
+    void saveAsTiff(String path) throws IOException {
+        FileInfo fi = imp.getFileInfo();
+        fi.nImages = nPlanes;
+        fi.virtualStack = new DrawnStack();
+        fi.info = imp.getInfoProperty();
+        fi.description = new FileSaver(imp).getDescriptionString();
+
+        start();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 4096 * 16));
+        try {
+            new TiffEncoder(fi).write(out);
+        } finally {
+            out.close();
+            stop();
+        }
+    }
+
+    /**
+     * Writes the annotated planes to one TIFF file per plane in
+     * {directory}.
+     */
+    void saveAsTiffSequence(String directory) throws IOException {
+        String name = imp.getShortTitle();
+        int digits = Math.max(4, String.valueOf(nPlanes).length());
+
+        start();
+        try {
+            for (int i = 1; i <= nPlanes; ++i) {
+                ImageProcessor ip = take(i);
+                String path = directory + File.separator + name + "_" + IJ.pad(i, digits) + ".tif";
+                ImagePlus plane = new ImagePlus(name, ip);
+                plane.setCalibration(imp.getCalibration());
+                if (!new FileSaver(plane).saveAsTiff(path))
+                    throw new IOException("Could not write " + path);
+            }
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Starts the reading and drawing threads. The annotated planes must
+     * then be taken in order, and stop() called once done.
+     */
+    void start() {
+        startTime = System.nanoTime();
+
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 1; i <= nPlanes && !stopped; ++i)
+                        read.put(new Plane(i, readPlane(i)));
+                } catch (Throwable e) {
+                    failure = e;
+                } finally {
+                    offerEnd(read);
+                }
+            }
+        }, "TimeBar reader");
+
+        Thread drawer = new Thread(new Runnable() {
+            public void run() {
+                TimeBarBurner burner = new TimeBarBurner(layout);
+                try {
+                    for (Plane plane = read.take(); plane != END && !stopped; plane = read.take()) {
+                        int frame = getFrame(plane.index);
+                        burner.drawTimeBar(plane.ip, frame, labels.getLabel(frame));
+                        drawn.put(plane);
+                    }
+                } catch (Throwable e) {
+                    failure = e;
+                } finally {
+                    offerEnd(drawn);
+                }
+            }
+        }, "TimeBar drawer");
+
+        reader.setDaemon(true);
+        drawer.setDaemon(true);
+        reader.start();
+        drawer.start();
+    }
+
+    /**
+     * Returns the annotated plane {index}, which must be the next one,
+     * and reports progress.
+     */
+    ImageProcessor take(int index) throws IOException {
+        Plane plane;
+        try {
+            plane = drawn.take();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted", e);
+        }
+        if (plane == END || plane.index != index)
+            throw new IOException("Could not draw plane " + index, failure);
+
+        double rate = getRate(index);
+        IJ.showProgress(index, nPlanes);
+        IJ.showStatus(String.format("Time Bar: %d/%d %s, %.1f %s/s, %.0f s left", index, nPlanes, unit, rate, unit, (nPlanes - index) / rate));
+        return plane.ip;
+    }
+
+    /**
+     * Stops the pipeline, in case it did not run to the end.
+     */
+    void stop() {
+        stopped = true;
+        read.clear();
+        drawn.clear();
+        IJ.showProgress(1.0);
+    }
+
+    private void offerEnd(BlockingQueue<Plane> queue) {
+        // Wait for the consumer, unless it stopped: then make room.
+        try {
+            while (!queue.offer(END, 100, TimeUnit.MILLISECONDS))
+                if (stopped)
+                    queue.clear();
+        } catch (InterruptedException e) {
+            queue.clear();
+            queue.offer(END);
+        }
+    }
+
+    /**
+     * Returns the number of {unit} taken per second since start().
+     */
+    double getRate(int taken) {
+        return taken / ((System.nanoTime() - startTime) / 1e9);
+    }
+
+    /**
+     * Stack handed to encoders, which ask for its planes in order.
+     */
+    class DrawnStack extends VirtualStack {
+
+        private ImageProcessor last;
+        private int lastIndex;
+
+        DrawnStack() {
+        }
+
+        DrawnStack(int width, int height) {
+            super(width, height);
+        }
+
+        @Override
+        public ImageProcessor getProcessor(int n) {
+            if (n != lastIndex) {
+                try {
+                    last = take(n);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                lastIndex = n;
+            }
+            return last;
+        }
+
+        @Override
+        public int getSize() {
+            return nPlanes;
+        }
+    }
+}
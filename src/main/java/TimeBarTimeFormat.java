@@ -1,3 +1,4 @@
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -29,14 +30,31 @@ public class TimeBarTimeFormat {
         return TIME_FORMATS.indexOf(tf);
     }
     
+    private static final long MILLIS_PER_SECOND = 1000;
+    private static final long MILLIS_PER_MINUTE = 60 * MILLIS_PER_SECOND;
+    private static final long MILLIS_PER_HOUR = 60 * MILLIS_PER_MINUTE;
+    private static final long MILLIS_PER_DAY = 24 * MILLIS_PER_HOUR;
+
+    /** Buffer formatMillis() writes into, one per thread. */
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(32);
+        }
+    };
+
     protected final String description;
-    private String witoutUnitsFormat;
-    private String withUnitsFormat;
+    final String witoutUnitsFormat;
+    final String withUnitsFormat;
+    private final Plan witoutUnitsPlan;
+    private final Plan withUnitsPlan;
 
     public TimeBarTimeFormat(String description, String witoutUnitsFormat, String withUnitsFormat) {
         this.description = description;
         this.witoutUnitsFormat = witoutUnitsFormat;
         this.withUnitsFormat = withUnitsFormat;
+        this.witoutUnitsPlan = Plan.compile(witoutUnitsFormat);
+        this.withUnitsPlan = Plan.compile(withUnitsFormat);
     }
 
     @Override
@@ -45,7 +63,182 @@ public class TimeBarTimeFormat {
     }
 
     public String formatMillis(long timeInMillis, boolean withUnits) {
-        String f = withUnits ? withUnitsFormat : witoutUnitsFormat;
-        return DurationFormatUtils.formatDuration(timeInMillis, f);
+        Plan plan = withUnits ? withUnitsPlan : witoutUnitsPlan;
+        if (plan == null) {
+            String f = withUnits ? withUnitsFormat : witoutUnitsFormat;
+            return DurationFormatUtils.formatDuration(timeInMillis, f);
+        }
+        StringBuilder buffer = BUFFER.get();
+        buffer.setLength(0);
+        plan.format(timeInMillis, buffer);
+        return buffer.toString();
+    }
+
+    /**
+     * A DurationFormatUtils pattern, split once into its fields and
+     * literals, so that formatting a duration only does arithmetic.
+     *
+     * The pattern is read the way DurationFormatUtils reads it, and each
+     * field is padded with zeros to its number of letters, so the output
+     * is the same as DurationFormatUtils.formatDuration().
+     */
+    private static class Plan {
+
+        /** Field letter of each token, or 0 for a literal. */
+        private final char[] fields;
+        /** Number of digits of each field, at least. */
+        private final int[] widths;
+        /** Text of each literal. */
+        private final String[] literals;
+        private final boolean days, hours, minutes, seconds, millis;
+
+        private Plan(char[] fields, int[] widths, String[] literals) {
+            this.fields = fields;
+            this.widths = widths;
+            this.literals = literals;
+            this.days = contains(fields, 'd');
+            this.hours = contains(fields, 'H');
+            this.minutes = contains(fields, 'm');
+            this.seconds = contains(fields, 's');
+            this.millis = contains(fields, 'S');
+        }
+
+        /**
+         * Splits {pattern} into tokens. Returns null if {pattern} uses
+         * years, months or optional blocks, or has an unmatched quote:
+         * these are left to DurationFormatUtils.
+         */
+        static Plan compile(String pattern) {
+            List<Character> fields = new ArrayList<Character>();
+            List<Integer> widths = new ArrayList<Integer>();
+            List<String> literals = new ArrayList<String>();
+            StringBuilder literal = null;
+            int previous = -1;
+            boolean inLiteral = false;
+            for (int i = 0; i < pattern.length(); ++i) {
+                char c = pattern.charAt(i);
+                if (inLiteral && c != '\'')
+                    literal.append(c);
+                else switch (c) {
+                    case '\'':
+                        if (inLiteral) {
+                            literal = null;
+                            inLiteral = false;
+                        } else {
+                            literal = new StringBuilder();
+                            fields.add('\0');
+                            widths.add(0);
+                            literals.add(null);
+                            inLiteral = true;
+                        }
+                        break;
+                    case 'y': case 'M': case '[': case ']':
+                        return null;
+                    case 'd': case 'H': case 'm': case 's': case 'S':
+                        if (previous >= 0 && fields.get(previous) == c) {
+                            widths.set(previous, widths.get(previous) + 1);
+                        } else {
+                            previous = fields.size();
+                            fields.add(c);
+                            widths.add(1);
+                            literals.add(null);
+                        }
+                        literal = null;
+                        break;
+                    default:
+                        if (literal == null) {
+                            literal = new StringBuilder();
+                            fields.add('\0');
+                            widths.add(0);
+                            literals.add(null);
+                        }
+                        literal.append(c);
+                }
+                // The literal being read is always the last token.
+                if (literal != null)
+                    literals.set(literals.size() - 1, literal.toString());
+            }
+            if (inLiteral)
+                return null;
+
+            char[] f = new char[fields.size()];
+            int[] w = new int[fields.size()];
+            for (int i = 0; i < f.length; ++i) {
+                f[i] = fields.get(i);
+                w[i] = widths.get(i);
+                if (f[i] == 0 && literals.get(i) == null)
+                    literals.set(i, "");
+            }
+            return new Plan(f, w, literals.toArray(new String[0]));
+        }
+
+        void format(long duration, StringBuilder buffer) {
+            if (duration < 0)
+                throw new IllegalArgumentException("durationMillis must not be negative");
+            long d = 0, h = 0, m = 0, s = 0;
+            if (days) {
+                d = duration / MILLIS_PER_DAY;
+                duration -= d * MILLIS_PER_DAY;
+            }
+            if (hours) {
+                h = duration / MILLIS_PER_HOUR;
+                duration -= h * MILLIS_PER_HOUR;
+            }
+            if (minutes) {
+                m = duration / MILLIS_PER_MINUTE;
+                duration -= m * MILLIS_PER_MINUTE;
+            }
+            if (seconds) {
+                s = duration / MILLIS_PER_SECOND;
+                duration -= s * MILLIS_PER_SECOND;
+            }
+            long ms = millis ? duration : 0;
+
+            boolean lastOutputSeconds = false;
+            for (int i = 0; i < fields.length; ++i) {
+                switch (fields[i]) {
+                    case 0:
+                        buffer.append(literals[i]);
+                        break;
+                    case 'd':
+                        appendPadded(buffer, d, widths[i]);
+                        lastOutputSeconds = false;
+                        break;
+                    case 'H':
+                        appendPadded(buffer, h, widths[i]);
+                        lastOutputSeconds = false;
+                        break;
+                    case 'm':
+                        appendPadded(buffer, m, widths[i]);
+                        lastOutputSeconds = false;
+                        break;
+                    case 's':
+                        appendPadded(buffer, s, widths[i]);
+                        lastOutputSeconds = true;
+                        break;
+                    case 'S':
+                        // Milliseconds after seconds always show 3 digits.
+                        appendPadded(buffer, ms, lastOutputSeconds ? Math.max(3, widths[i]) : widths[i]);
+                        lastOutputSeconds = false;
+                        break;
+                }
+            }
+        }
+
+        private static void appendPadded(StringBuilder buffer, long value, int width) {
+            int digits = 1;
+            for (long v = value; v >= 10; v /= 10)
+                ++digits;
+            for (int i = digits; i < width; ++i)
+                buffer.append('0');
+            buffer.append(value);
+        }
+
+        private static boolean contains(char[] fields, char field) {
+            for (char f : fields)
+                if (f == field)
+                    return true;
+            return false;
+        }
     }
 }
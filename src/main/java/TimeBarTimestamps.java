@@ -0,0 +1,125 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable list of pre-defined timestamps, parsed once from the dialog
+ * string or from a file, and indexed by frame.
+ *
+ * An instance remembers what it was parsed from, so that the plugin
+ * parses the timestamps again only when isParsedFrom() returns false, or
+ * when isModified() returns true. The first only compares strings and
+ * paths, and is cheap enough for every frame; the second looks at the
+ * file.
+ */
+class TimeBarTimestamps {
+
+    private final String[] timestamps;
+
+    // What the timestamps were parsed from.
+    private final String source;
+    private final String path;
+    private final long lastModified;
+    private final long length;
+
+    private TimeBarTimestamps(String[] timestamps, String source, String path, long lastModified, long length) {
+        this.timestamps = timestamps;
+        this.source = source;
+        this.path = path;
+        this.lastModified = lastModified;
+        this.length = length;
+    }
+
+    /**
+     * Parses the comma separated timestamps of {source}, the same way as
+     * source.split(",") would.
+     */
+    static TimeBarTimestamps parse(String source) {
+        List<String> list = new ArrayList<String>();
+        int start = 0;
+        for (int comma = source.indexOf(','); comma >= 0; comma = source.indexOf(',', start)) {
+            list.add(source.substring(start, comma));
+            start = comma + 1;
+        }
+        list.add(source.substring(start));
+
+        // Like split(), drop the trailing empty timestamps, unless there
+        // was no comma at all.
+        if (list.size() > 1)
+            while (!list.isEmpty() && list.get(list.size() - 1).isEmpty())
+                list.remove(list.size() - 1);
+        return new TimeBarTimestamps(list.toArray(new String[0]), source, null, 0, 0);
+    }
+
+    /**
+     * Reads the timestamps of the text or CSV file at {path}: one
+     * timestamp per line, or several separated by commas. Empty lines
+     * are ignored.
+     *
+     * The file is read line by line, so only the timestamps themselves
+     * are held in memory.
+     */
+    static TimeBarTimestamps read(String path) throws IOException {
+        File file = new File(path);
+        List<String> list = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.trim().isEmpty())
+                    continue;
+                int start = 0;
+                for (int comma = line.indexOf(','); comma >= 0; comma = line.indexOf(',', start)) {
+                    list.add(line.substring(start, comma).trim());
+                    start = comma + 1;
+                }
+                list.add(line.substring(start).trim());
+            }
+        } finally {
+            reader.close();
+        }
+        return new TimeBarTimestamps(list.toArray(new String[0]), null, path, file.lastModified(), file.length());
+    }
+
+    /**
+     * Returns an empty list standing for the file at {path}, which could
+     * not be read, so that it is not read again until it changes.
+     */
+    static TimeBarTimestamps unreadable(String path) {
+        File file = new File(path);
+        return new TimeBarTimestamps(new String[0], null, path, file.lastModified(), file.length());
+    }
+
+    /**
+     * Returns true if these timestamps were parsed from {source}, or,
+     * when {path} is not empty, read from the file at {path}.
+     */
+    boolean isParsedFrom(String source, String path) {
+        if (path != null && !path.isEmpty())
+            return path.equals(this.path);
+        return this.path == null && (source == this.source || source.equals(this.source));
+    }
+
+    /**
+     * Returns true if these timestamps were read from a file that changed
+     * since.
+     */
+    boolean isModified() {
+        if (path == null)
+            return false;
+        File file = new File(path);
+        return file.lastModified() != lastModified || file.length() != length;
+    }
+
+    int size() {
+        return timestamps.length;
+    }
+
+    String get(int frame) {
+        return timestamps[frame-1];
+    }
+}
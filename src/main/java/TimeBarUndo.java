@@ -0,0 +1,128 @@
+import java.awt.Rectangle;
+import java.lang.reflect.Array;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/**
+ * Journal of the pixels covered by the timebar burned into an image, so
+ * that the whole stack can be reverted, and not only the displayed plane.
+ *
+ * Only the rectangle the timebar can reach is saved for each plane, a few
+ * KB whatever the size of the image, so reverting takes a time
+ * proportional to the area of the timebar.
+ *
+ * The journal is kept as a property of the image, so that a later run of
+ * the plugin, such as "Remove Time Bar", can revert it.
+ */
+class TimeBarUndo {
+
+    static final String PROPERTY = "TimeBarUndo";
+
+    private final ImageStack stack;
+
+    // Saved rectangle and pixels of each stack index, or null.
+    private Rectangle[] bounds = new Rectangle[0];
+    private Object[] regions = new Object[0];
+
+    TimeBarUndo(ImageStack stack) {
+        this.stack = stack;
+    }
+
+    /**
+     * Returns the journal of the timebar burned into {imp}, or null if
+     * there is none for its current stack.
+     */
+    static TimeBarUndo get(ImagePlus imp) {
+        Object undo = imp.getProperty(PROPERTY);
+        if (undo instanceof TimeBarUndo && ((TimeBarUndo) undo).isFor(imp))
+            return (TimeBarUndo) undo;
+        return null;
+    }
+
+    /**
+     * Returns the journal of {imp}, which is created and kept by {imp}
+     * if there is none.
+     */
+    static TimeBarUndo attach(ImagePlus imp) {
+        TimeBarUndo undo = get(imp);
+        if (undo == null) {
+            undo = new TimeBarUndo(imp.getStack());
+            imp.setProperty(PROPERTY, undo);
+        }
+        return undo;
+    }
+
+    /**
+     * Returns true if this journal was written for the planes of {imp}.
+     */
+    boolean isFor(ImagePlus imp) {
+        return stack == imp.getStack();
+    }
+
+    /**
+     * Makes room for stack indices up to {size}, so that they can then be
+     * saved from several threads.
+     */
+    void ensureCapacity(int size) {
+        if (bounds.length > size)
+            return;
+        Rectangle[] newBounds = new Rectangle[size + 1];
+        Object[] newRegions = new Object[size + 1];
+        System.arraycopy(bounds, 0, newBounds, 0, bounds.length);
+        System.arraycopy(regions, 0, newRegions, 0, regions.length);
+        bounds = newBounds;
+        regions = newRegions;
+    }
+
+    /**
+     * Saves the pixels of {r} in {processor}, the plane at {index}, before
+     * the timebar is burned there.
+     *
+     * If the plane was already saved, its pixels are first reverted, so
+     * the journal always holds the pixels without any timebar. Each index
+     * must be saved by a single thread at a time.
+     */
+    void save(int index, ImageProcessor processor, Rectangle r) {
+        if (r.isEmpty())
+            return;
+        if (regions[index] != null) {
+            if (r.equals(bounds[index]))
+                return;
+            copy(regions[index], processor.getPixels(), processor.getWidth(), bounds[index], true);
+        }
+        Object pixels = processor.getPixels();
+        Object region = Array.newInstance(pixels.getClass().getComponentType(), r.width * r.height);
+        copy(region, pixels, processor.getWidth(), r, false);
+        bounds[index] = new Rectangle(r);
+        regions[index] = region;
+    }
+
+    /**
+     * Reverts the saved pixels, and empties the journal.
+     */
+    void restore() {
+        int size = Math.min(regions.length - 1, stack.getSize());
+        for (int index = 1; index <= size; ++index) {
+            if (regions[index] == null)
+                continue;
+            copy(regions[index], stack.getPixels(index), stack.getWidth(), bounds[index], true);
+        }
+        bounds = new Rectangle[0];
+        regions = new Object[0];
+    }
+
+    /**
+     * Copies the rectangle {r} of {pixels}, of width {width}, to {region}
+     * or back from it.
+     */
+    private static void copy(Object region, Object pixels, int width, Rectangle r, boolean back) {
+        for (int y = 0; y < r.height; y++) {
+            if (back)
+                System.arraycopy(region, y * r.width, pixels, (r.y + y) * width + r.x, r.width);
+            else
+                System.arraycopy(pixels, (r.y + y) * width + r.x, region, y * r.width, r.width);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+import java.awt.Rectangle;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converter;
+import net.imglib2.converter.Converters;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.util.Pair;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Lazy ImgLib2 view of an image with the timebar drawn on it.
+ *
+ * Nothing is copied: each pixel read from the view is read from the
+ * original image, and replaced by the timebar where the mask of its frame
+ * is not empty. The mask of a frame is drawn the first time the frame is
+ * read, and kept in a small cache shared by all the accesses to the view.
+ *
+ * Mask values are mapped to the display range {min}, {max}, as when the
+ * timebar is burned into 16 and 32-bits images.
+ */
+class TimeBarView {
+
+    /** Memory the cached masks may use. */
+    private static final long MAX_MASK_BYTES = 16L * 1024 * 1024;
+
+    private final TimeBarLayout layout;
+    private final TimeBarLabels labels;
+    private final TimeBarLabelCache labelCache;
+    private final Rectangle bounds;
+    private final int timeAxis;
+    private final long[] min;
+    private final Map<Integer, byte[]> masks;
+
+    private TimeBarView(TimeBar_ plugin, int timeAxis, Interval interval) throws TimeBar_.MissingRoiException {
+        this.layout = plugin.getLayout();
+        this.labels = plugin.getLabels();
+        this.labelCache = new TimeBarLabelCache(layout);
+        this.bounds = new TimeBarBurner(layout, labelCache).getBounds();
+        this.timeAxis = timeAxis;
+        this.min = new long[interval.numDimensions()];
+        interval.min(min);
+
+        final int maxMasks = (int) Math.max(1, MAX_MASK_BYTES / Math.max(1, (long) bounds.width * bounds.height));
+        this.masks = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                return size() > maxMasks;
+            }
+        };
+    }
+
+    /**
+     * Returns a view of {source} with the timebar drawn on it, for
+     * {config}. The first two dimensions of {source} are X and Y, and
+     * frames are along {timeAxis}, {calibration} giving their interval.
+     */
+    static <T extends RealType<T>> RandomAccessibleInterval<T> annotate(RandomAccessibleInterval<T> source, int timeAxis,
+            TimeBarConfiguration config, Calibration calibration, double min, double max) {
+        if (timeAxis < 2 || timeAxis >= source.numDimensions())
+            throw new IllegalArgumentException("The time axis must be one of the dimensions after X and Y: " + timeAxis);
+        if (source.dimension(timeAxis) <= 1)
+            throw new IllegalArgumentException("This plugin works on images with multiple frames");
+
+        // The view draws from the frame interval only, and on all frames.
+        TimeBarConfiguration viewConfig = new TimeBarConfiguration(config);
+        viewConfig.useMetadataTimes = false;
+        viewConfig.liveMode = false;
+
+        ImagePlus shape = new ImageShape((int) source.dimension(0), (int) source.dimension(1), (int) source.dimension(timeAxis));
+        shape.setCalibration(calibration);
+
+        TimeBarView view;
+        try {
+            view = new TimeBarView(new TimeBar_(shape, viewConfig), timeAxis, source);
+        } catch (TimeBar_.MissingRoiException e) {
+            throw new IllegalArgumentException("The view cannot draw the timebar at a selection");
+        }
+
+        final double[] values = new double[256];
+        for (int p = 1; p < 256; ++p)
+            values[p] = p / 255. * (max - min) + min;
+
+        Converter<Pair<T, UnsignedByteType>, T> converter = new Converter<Pair<T, UnsignedByteType>, T>() {
+            @Override
+            public void convert(Pair<T, UnsignedByteType> input, T output) {
+                int p = input.getB().get();
+                if (p == 0)
+                    output.set(input.getA());
+                else
+                    output.setReal(values[p]);
+            }
+        };
+        T type = Util.getTypeFromInterval(source).createVariable();
+        return Views.interval(Converters.convert(Views.pair(source, view.new Mask(source.numDimensions())), converter, type), source);
+    }
+
+    /**
+     * Returns the mask of {frame}, drawing it with {burner} if it is not
+     * cached. Returns null if the timebar is not visible.
+     */
+    private byte[] getMask(int frame, TimeBarBurner burner) {
+        synchronized (masks) {
+            byte[] mask = masks.get(frame);
+            if (mask != null)
+                return mask;
+        }
+        byte[] mask = burner.createMask(frame, labels.getLabel(frame));
+        if (mask != null) {
+            synchronized (masks) {
+                masks.put(frame, mask);
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * The timebar of every frame, as a lazy image of mask values.
+     */
+    private class Mask implements RandomAccessible<UnsignedByteType> {
+
+        private final int n;
+
+        Mask(int n) {
+            this.n = n;
+        }
+
+        @Override
+        public int numDimensions() {
+            return n;
+        }
+
+        @Override
+        public RandomAccess<UnsignedByteType> randomAccess() {
+            return new MaskAccess(n);
+        }
+
+        @Override
+        public RandomAccess<UnsignedByteType> randomAccess(Interval interval) {
+            return randomAccess();
+        }
+    }
+
+    /**
+     * Reads mask values. Like any RandomAccess, it must not be shared
+     * between threads, so it draws masks with its own burner.
+     */
+    private class MaskAccess extends Point implements RandomAccess<UnsignedByteType> {
+
+        private final UnsignedByteType value = new UnsignedByteType();
+        private TimeBarBurner burner;
+        private int lastFrame;
+        private byte[] lastMask;
+
+        MaskAccess(int n) {
+            super(n);
+        }
+
+        MaskAccess(MaskAccess access) {
+            super(access);
+        }
+
+        @Override
+        public UnsignedByteType get() {
+            int x = (int) (position[0] - min[0]) - bounds.x;
+            int y = (int) (position[1] - min[1]) - bounds.y;
+            long frame = position[timeAxis] - min[timeAxis] + 1;
+            if (x < 0 || y < 0 || x >= bounds.width || y >= bounds.height || frame < 1 || frame > layout.nFrames) {
+                value.set(0);
+                return value;
+            }
+
+            if (frame != lastFrame) {
+                if (burner == null)
+                    burner = new TimeBarBurner(layout, labelCache);
+                lastMask = getMask((int) frame, burner);
+                lastFrame = (int) frame;
+            }
+            value.set(lastMask == null ? 0 : lastMask[y * bounds.width + x] & 0xff);
+            return value;
+        }
+
+        @Override
+        public MaskAccess copy() {
+            return new MaskAccess(this);
+        }
+
+        @Override
+        public MaskAccess copyRandomAccess() {
+            return copy();
+        }
+    }
+
+    /**
+     * Stands for an image of the given size, without pixels, so that the
+     * plugin can lay the timebar out.
+     */
+    private static class ImageShape extends ImagePlus {
+
+        private final int width, height, nFrames;
+
+        ImageShape(int width, int height, int nFrames) {
+            this.width = width;
+            this.height = height;
+            this.nFrames = nFrames;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public int getNFrames() {
+            return nFrames;
+        }
+
+        @Override
+        public int getNChannels() {
+            return 1;
+        }
+
+        @Override
+        public int getNSlices() {
+            return 1;
+        }
+
+        @Override
+        public int getStackSize() {
+            return nFrames;
+        }
+    }
+}
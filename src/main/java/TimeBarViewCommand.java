@@ -0,0 +1,54 @@
+import ij.measure.Calibration;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+import org.scijava.ItemIO;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+/**
+ * SciJava command returning a lazy view of an image with the timebar
+ * drawn on it, for images too large to be copied, such as N5 or
+ * BigDataViewer datasets.
+ *
+ * The view reads the original image, and draws the timebar while a
+ * plane is read, so nothing is computed until the view is consumed, for
+ * instance by an export.
+ */
+@Plugin(type = Command.class, menuPath = "Analyze>Tools>Time Bar View")
+public class TimeBarViewCommand<T extends RealType<T>> implements Command {
+
+    @Parameter(label = "Image")
+    private RandomAccessibleInterval<T> image;
+
+    @Parameter(label = "Time axis", description = "Dimension of the frames, X and Y being dimensions 0 and 1", min = "2")
+    private int timeAxis = 2;
+
+    @Parameter(label = "Frame interval")
+    private double frameInterval = 1;
+
+    @Parameter(label = "Time unit")
+    private String timeUnit = "s";
+
+    @Parameter(label = "Options", description = "Timebar options, as recorded by the macro recorder for the Time Bar dialog")
+    private String options = new TimeBarConfiguration().toOptions();
+
+    @Parameter(label = "Display minimum")
+    private double min = 0;
+
+    @Parameter(label = "Display maximum")
+    private double max = 255;
+
+    @Parameter(type = ItemIO.OUTPUT)
+    private RandomAccessibleInterval<T> annotated;
+
+    @Override
+    public void run() {
+        Calibration calibration = new Calibration();
+        calibration.frameInterval = frameInterval;
+        calibration.setTimeUnit(timeUnit);
+        annotated = TimeBarView.annotate(image, timeAxis, TimeBarConfiguration.fromOptions(options), calibration, min, max);
+    }
+}
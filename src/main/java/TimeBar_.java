@@ -1,25 +1,32 @@
 import java.awt.Rectangle;
 
-import java.awt.Color;
 import java.awt.Font;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.ImageStack;
+import ij.Macro;
+import ij.Prefs;
 import ij.WindowManager;
-import ij.gui.DialogListener;
 import ij.gui.GenericDialog;
 import ij.gui.Overlay;
 import ij.gui.Roi;
-import ij.gui.TextRoi;
+import ij.io.SaveDialog;
 import ij.measure.Calibration;
+import ij.plugin.Animator;
 import ij.plugin.PlugIn;
-import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 
 public class TimeBar_ implements PlugIn {
 
     static final String TIME_BAR = "|TB|";
+    static final String[] STREAM_OUTPUTS = {"Multipage TIFF", "TIFF sequence"};
+    static final String MOVIE = "movie";
+    static final String ALL_IMAGES = "all";
+    static final String REMOVE = "remove";
+    static final String[] IMAGE_CHOICES = {"All open images", "Images like the current one"};
     
     private static final TimeBarConfiguration sConfig = new TimeBarConfiguration();
     private TimeBarConfiguration config = new TimeBarConfiguration(sConfig);
@@ -33,11 +40,114 @@ public class TimeBar_ implements PlugIn {
     Rectangle hBackground = new Rectangle();
     Rectangle hBar = new Rectangle();
     Rectangle hText = new Rectangle();
-    
+
+    TimeBarTimestamps timestamps;
+    TimeBarEvents events;
+    TimeBarPlaneTimes planeTimes;
+    int liveStartFrames;
+    TimeBarLabels labels;
+    TimeBarLayout layout;
+    TimeBarBurner burner;
+    TimeBarOverlayGroup overlayGroup = new TimeBarOverlayGroup();
+    Font font;
+    int nThreads = Prefs.getThreads();
+
+    public TimeBar_() {
+    }
+
+    /**
+     * Creates a plugin instance working on {imp} with a copy of
+     * {configuration}, without any dialog.
+     */
+    TimeBar_(ImagePlus imp, TimeBarConfiguration configuration) {
+        this.imp = imp;
+        this.config = new TimeBarConfiguration(configuration);
+        this.nFrames = imp.getNFrames();
+        this.currentFrame = imp.getFrame();
+    }
+
+    /**
+     * Creates a plugin instance working on {imp}, with the configuration
+     * and selection of {template}, without any dialog.
+     */
+    TimeBar_(ImagePlus imp, TimeBar_ template) {
+        this(imp, template.config);
+        this.userRoiExists = template.userRoiExists;
+        this.roiX = template.roiX;
+        this.roiY = template.roiY;
+        this.roiWidth = template.roiWidth;
+        this.roiHeight = template.roiHeight;
+    }
+
+    /**
+     * Uses the timestamps, labels and layout of {other}, so that they are
+     * not computed again if they apply to the image of this instance.
+     */
+    void shareFrom(TimeBar_ other) {
+        if (other == this)
+            return;
+        this.timestamps = other.timestamps;
+        this.events = other.events;
+        this.font = other.font;
+        this.labels = other.labels;
+        this.layout = other.layout;
+    }
+
+    /**
+     * Draws the timebar on all frames of {imp}, with {configuration},
+     * and returns {imp}.
+     * 
+     * This does not show any dialog or window, and works in headless
+     * mode. Burning the timebar into a virtual stack is not possible
+     * here, use TimeBarStreamer instead.
+     */
+    public static ImagePlus annotate(ImagePlus imp, TimeBarConfiguration configuration) {
+        return new TimeBar_(imp, configuration).annotate();
+    }
+
+    /**
+     * Draws the timebar on all frames of the image of this instance,
+     * without any dialog, and returns the image.
+     */
+    ImagePlus annotate() {
+        if (nFrames <= 1)
+            throw new IllegalArgumentException("This plugin works on stacks with multiple frames: " + imp.getTitle());
+        if (!config.useOverlay && imp.getStack().isVirtual())
+            throw new IllegalArgumentException("Cannot burn the timebar into a virtual stack: " + imp.getTitle());
+
+        userRoiExists = parseCurrentROI();
+        try {
+            getLayout();
+        } catch (MissingRoiException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        updateTimeBar(false);
+        TimeBarMetrics.report(imp.getTitle());
+        if (config.liveMode)
+            TimeBarLive.attach(this);
+        return imp;
+    }
+
+    /**
+     * Opens the image at {path}, draws the timebar on it with
+     * {configuration}, and returns it.
+     */
+    public static ImagePlus annotate(String path, TimeBarConfiguration configuration) {
+        ImagePlus imp = IJ.openImage(path);
+        if (imp == null)
+            throw new IllegalArgumentException("Could not open " + path);
+        return annotate(imp, configuration);
+    }
+
 	/**
 	 * This method is called when the plugin is loaded. 'arg', which
 	 * may be blank, is the argument specified for this plugin in
 	 * IJ_Props.txt.
+	 * 
+	 * With "movie" as {arg}, the timebar is drawn into a movie written
+	 * to disk instead of the image. With "all", it is drawn on all the
+	 * open images, or on the images like the current one. With "remove",
+	 * the timebar is removed from the image, without any dialog.
 	 */
     public void run(String arg) {
         imp = WindowManager.getCurrentImage();
@@ -46,6 +156,11 @@ public class TimeBar_ implements PlugIn {
             return;
         }
 
+        if (REMOVE.equals(arg)) {
+            removeTimeBar();
+            return;
+        }
+
         // Get time info about image/
         nFrames = imp.getNFrames();
         currentFrame = imp.getFrame();
@@ -54,49 +169,226 @@ public class TimeBar_ implements PlugIn {
 			return;
 		}
 
-        // Snapshot before anything, so we can revert if the user cancels the action.
-        imp.getProcessor().snapshot();
-
+        restoreSavedConfiguration();
         userRoiExists = parseCurrentROI();
         boolean userOKed = askUserConfiguration(userRoiExists);
+        forgetModifiedFiles();
         
         if (!userOKed) {
-            removeTimeBar();
+            removePreview();
             return;
         }
         
         if (!IJ.isMacro())
             persistConfiguration();
 
+        if (MOVIE.equals(arg)) {
+            removePreview();
+            exportMovie();
+            return;
+        }
+
+        if (ALL_IMAGES.equals(arg)) {
+            annotateAllImages();
+            return;
+        }
+
+        if (!config.useOverlay && imp.getStack().isVirtual()) {
+            // Planes of a virtual stack are not kept in memory, so the
+            // timebar is drawn while the planes are written to disk.
+            removePreview();
+            streamTimeBar();
+            return;
+        }
+
         updateTimeBar(false);
+        TimeBarMetrics.report(imp.getTitle());
+        if (config.liveMode)
+            TimeBarLive.attach(this);
     }
 
+	/**
+	 * Asks where to write the annotated planes of a virtual stack, and
+	 * writes them.
+	 */
+	void streamTimeBar() {
+		TimeBarLayout layout;
+		try {
+			layout = getLayout();
+		} catch (MissingRoiException e) {
+			return; // Simply don't draw the scalebar.
+		}
+
+		GenericDialog dialog = new GenericDialog("Time Bar");
+		dialog.addMessage("The planes of a virtual stack are not kept in memory:\nthe annotated planes are written to disk.");
+		dialog.addChoice("Output: ", STREAM_OUTPUTS, STREAM_OUTPUTS[0]);
+		dialog.showDialog();
+		if (dialog.wasCanceled())
+			return;
+		boolean sequence = dialog.getNextChoiceIndex() == 1;
+
+		String path;
+		if (sequence) {
+			path = IJ.getDirectory("Output directory");
+		} else {
+			SaveDialog saveDialog = new SaveDialog("Save annotated stack", imp.getShortTitle() + "-timebar", ".tif");
+			path = saveDialog.getFileName() == null ? null : saveDialog.getDirectory() + saveDialog.getFileName();
+		}
+		if (path == null)
+			return;
+
+		TimeBarStreamer streamer = new TimeBarStreamer(imp, layout, getLabels());
+		try {
+			if (sequence)
+				streamer.saveAsTiffSequence(path);
+			else
+				streamer.saveAsTiff(path);
+		} catch (IOException | RuntimeException e) {
+			IJ.error("Timebar", "Could not write the annotated stack:\n" + e.getMessage());
+		}
+	}
+
+	/**
+	 * Asks which open images to annotate, and draws the timebar of this
+	 * instance on them.
+	 */
+	void annotateAllImages() {
+		GenericDialog dialog = new GenericDialog("Time Bar");
+		dialog.addChoice("Images: ", IMAGE_CHOICES, IMAGE_CHOICES[0]);
+		dialog.showDialog();
+		if (dialog.wasCanceled()) {
+			removePreview();
+			return;
+		}
+		boolean likeCurrent = dialog.getNextChoiceIndex() == 1;
+
+		String key = TimeBarMultiImage.getGroupKey(imp);
+		List<ImagePlus> images = new ArrayList<ImagePlus>();
+		for (int id : WindowManager.getIDList()) {
+			ImagePlus image = WindowManager.getImage(id);
+			if (image != null && (!likeCurrent || key.equals(TimeBarMultiImage.getGroupKey(image))))
+				images.add(image);
+		}
+
+		try {
+			int done = TimeBarMultiImage.annotate(this, images, !config.useOverlay, config.liveMode, nThreads);
+			IJ.showStatus("Time Bar: " + done + " images annotated");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		TimeBarMetrics.report("all images");
+	}
+
+	/**
+	 * Asks which planes to export and where, and writes a movie of them
+	 * with the timebar.
+	 */
+	void exportMovie() {
+		TimeBarLayout layout;
+		try {
+			layout = getLayout();
+		} catch (MissingRoiException e) {
+			return; // Simply don't draw the scalebar.
+		}
+
+		int nChannels = imp.getNChannels();
+		String[] channels = new String[nChannels + (imp.isComposite() ? 1 : 0)];
+		int offset = 0;
+		if (imp.isComposite())
+			channels[offset++] = "Composite";
+		for (int c = 1; c <= nChannels; ++c)
+			channels[offset + c - 1] = "Channel " + c;
+		double fps = imp.getCalibration().fps > 0 ? imp.getCalibration().fps : Animator.getFrameRate();
+
+		GenericDialog dialog = new GenericDialog("Time Bar Movie");
+		dialog.addChoice("Channel: ", channels, channels[imp.isComposite() && imp.getCompositeMode() == IJ.COMPOSITE ? 0 : offset + imp.getC() - 1]);
+		dialog.addNumericField("Slice: ", imp.getZ(), 0);
+		dialog.addChoice("Format: ", TimeBarMovie.FORMATS, TimeBarMovie.FORMATS[0]);
+		dialog.addNumericField("Frame rate: ", fps, 1, 6, "fps");
+		dialog.showDialog();
+		if (dialog.wasCanceled())
+			return;
+		int channel = dialog.getNextChoiceIndex() + 1 - offset;
+		int slice = Math.max(1, Math.min(imp.getNSlices(), (int) dialog.getNextNumber()));
+		int format = dialog.getNextChoiceIndex();
+		fps = dialog.getNextNumber();
+
+		String path;
+		if (format == 2) {
+			path = IJ.getDirectory("Output directory");
+		} else {
+			SaveDialog saveDialog = new SaveDialog("Save movie", imp.getShortTitle() + "-timebar", ".avi");
+			path = saveDialog.getFileName() == null ? null : saveDialog.getDirectory() + saveDialog.getFileName();
+		}
+		if (path == null)
+			return;
+
+		TimeBarMovie movie = new TimeBarMovie(imp, layout, getLabels(), channel, slice);
+		try {
+			if (format == 2)
+				movie.saveAsPngSequence(path);
+			else
+				movie.saveAsAvi(path, format == 0, fps);
+		} catch (IOException | RuntimeException e) {
+			IJ.error("Timebar", "Could not write the movie:\n" + e.getMessage());
+		}
+	}
+
     /**
 	 * Remove the timebar drawn by this plugin.
 	 * 
-	 * If the timebar was drawn without the overlay by another
-	 * instance of the plugin (it is drawn into the image), then
-	 * we cannot remove it.
-	 * 
-	 * If the timebar was drawn using the overlay by another
+	 * If the timebar was drawn using the overlay, by this or another
 	 * instance of the plugin, then we can remove it.
 	 * 
-	 * With or without the overlay, we can remove a timebar
-	 * drawn by this instance of the plugin.
+	 * If the timebar was drawn without the overlay (it is drawn into
+	 * the image), then we can remove it from all the planes it was
+	 * drawn into, with the journal kept by the image. This also works
+	 * for a timebar burned by an earlier run, so running the plugin
+	 * again replaces the timebar instead of drawing a second one.
 	 */
     void removeTimeBar() {
-        // Revert with Undo, in case "Use Overlay" is not ticked
-        imp.getProcessor().reset();
+        // Revert from the journal, in case "Use Overlay" is not ticked
+        TimeBarUndo undo = TimeBarUndo.get(imp);
+        if (undo != null)
+            undo.restore();
+        long start = TimeBarMetrics.start();
         imp.updateAndDraw();
+        TimeBarMetrics.stop(TimeBarMetrics.Phase.REPAINT, start);
 
         // Remove overlay drawn by this plugin, in case "Use Overlay" is ticked
+        removePreview();
+    }
+
+    /**
+	 * Remove the ROIs this plugin added to the overlay, such as the
+	 * preview, without reverting or converting the pixels again: only
+	 * the canvas is repainted.
+	 */
+    void removePreview() {
         Overlay overlay = imp.getOverlay();
         if (overlay != null) {
-            overlay.remove(TIME_BAR);
+            overlayGroup.removeFrom(overlay);
             imp.draw();
         }
     }
 
+    /**
+	 * If the overlay holds a dynamic timebar saved with the image, use its
+	 * configuration as the starting point of the dialog.
+	 */
+    void restoreSavedConfiguration() {
+        Overlay overlay = imp.getOverlay();
+        if (overlay == null) return;
+
+        for (Roi roi : overlay) {
+            TimeBarConfiguration saved = TimeBarRoi.readDescriptor(roi);
+            if (saved != null) {
+                config.updateFrom(saved);
+                return;
+            }
+        }
+    }
+
     /**
 	 * If there is a user selected ROI, set the class variables {roiX}
 	 * and {roiY}, {roiWidth}, {roiHeight} to the corresponding
@@ -119,9 +411,18 @@ public class TimeBar_ implements PlugIn {
 	 * Genreate & draw the configuration dialog.
 	 * 
 	 * Return the value of dialog.wasOKed() when the user clicks OK
-	 * or Cancel.
+	 * or Cancel, or true when the configuration comes from macro
+	 * options.
 	 */
     boolean askUserConfiguration(boolean currentROIExists) {
+		// Options given by a macro are read as the dialog would read them,
+		// without building it or drawing any preview.
+		String options = Macro.getOptions();
+		if (options != null) {
+			config.updateFrom(TimeBarConfiguration.fromOptions(options));
+			return true;
+		}
+
 		// Update the user configuration if there is an ROI.
 		if (currentROIExists)
 			config.location = TimeBarLocation.LOCATIONS.get(TimeBarLocation.Locations.AT_SELECTION.ordinal());
@@ -135,9 +436,10 @@ public class TimeBar_ implements PlugIn {
 		
 		// Create & show the dialog, then return.
 		GenericDialog dialog = new TimeBarDialog(config, this);
-		DialogListener dialogListener = new TimeBarDialogListener(config, this);
+		TimeBarDialogListener dialogListener = new TimeBarDialogListener(config, this);
 		dialog.addDialogListener(dialogListener);
 		dialog.showDialog();
+		dialogListener.finish(config);
 
 		return dialog.wasOKed();
 	}
@@ -153,41 +455,102 @@ public class TimeBar_ implements PlugIn {
 		sConfig.updateFrom(config);
 	}
 
+	/**
+	 * Replaces the active configuration with a copy of {configuration}.
+	 */
+	void applyConfiguration(TimeBarConfiguration configuration) {
+		config.updateFrom(configuration);
+		forgetModifiedFiles();
+	}
+
+	/**
+	 * Forgets the timestamps and events read from files that changed
+	 * since, so that they are read again.
+	 * 
+	 * Files are only looked at here, when the configuration is set, and
+	 * not each time the labels or layout are checked for a frame.
+	 */
+	void forgetModifiedFiles() {
+		if (timestamps != null && timestamps.isModified())
+			timestamps = null;
+		if (events != null && events.isModified())
+			events = null;
+	}
+
+	/**
+	 * Returns the frame shown at {seconds}, as written by the labels,
+	 * which takes O(log N) with acquisition times.
+	 */
+	int getFrameAtTime(double seconds) {
+		TimeBarPlaneTimes planeTimes = getPlaneTimes();
+		int frame;
+		if (planeTimes != null) {
+			frame = planeTimes.getFrame(seconds - config.frameOffset * planeTimes.getMeanInterval());
+		} else {
+			double interval = imp.getCalibration().frameInterval * getTimeUnitInMillis() / 1000.;
+			frame = interval > 0 ? (int) Math.floor(seconds / interval - config.frameOffset + 1e-9) + 1 : 1;
+		}
+		return Math.max(1, Math.min(nFrames, frame));
+	}
+
+	/**
+	 * Shows {frame}, so that the preview draws its timebar.
+	 */
+	void jumpToFrame(int frame) {
+		if (frame == currentFrame)
+			return;
+		imp.setPosition(imp.getC(), imp.getZ(), frame);
+		currentFrame = frame;
+	}
+
 	/**
 	 * Create & draw the scalebar using an Overlay.
 	 */
 	Overlay createTimeBarOverlay(int frame) throws MissingRoiException {
-		// TODO: When using predefined timestamps, the timebar progression is likely not linear we should handle this situation
-		Overlay overlay = new Overlay();
+		long start = TimeBarMetrics.start();
+		try {
+			return getLayout().createOverlay(getTimeLabel(frame), frame);
+		} finally {
+			TimeBarMetrics.stop(TimeBarMetrics.Phase.OVERLAY, start);
+		}
+	}
 
-		Color color = config.color.color;
-		Color bcolor = config.bcolor.color;
-		
+	/**
+	 * Returns the font of the labels, allocating a new one only if the
+	 * font settings changed since the last call.
+	 */
+	Font getFont() {
 		int fontType = config.boldText?Font.BOLD:Font.PLAIN;
 		String face = config.serifFont?"Serif":"SanSerif";
-		Font font = new Font(face, fontType, config.fontSize);
-		ImageProcessor ip = imp.getProcessor();
-		ip.setFont(font);
-
-		setElementsPositions();
+		if (font == null || font.getStyle() != fontType || !font.getName().equals(face) || font.getSize() != config.fontSize)
+			font = new Font(face, fontType, config.fontSize);
+		return font;
+	}
 
-		if (bcolor != null) {
-            Roi hBackgroundRoi = new Roi(hBackground.x, hBackground.y, hBackground.width, hBackground.height);
-            hBackgroundRoi.setFillColor(bcolor);
-            overlay.add(hBackgroundRoi, TIME_BAR);
+	/**
+	 * Returns the layout of the timebar for the current configuration,
+	 * computing it again only if the configuration changed since the
+	 * last call.
+	 */
+	TimeBarLayout getLayout() throws MissingRoiException {
+		TimeBarLabels labels = getLabels();
+		if (layout == null || !layout.isValidFor(this, config, labels)) {
+			setElementsPositions();
+			layout = new TimeBarLayout(this, config, labels, getFont());
 		}
+		return layout;
+	}
 
-		if (!config.hideBar) {
-            Roi hBarRoi = new Roi(hBar.x, hBar.y, hBar.width*(frame-1)/(nFrames-1), hBar.height);
-            hBarRoi.setFillColor(color);
-            overlay.add(hBarRoi, TIME_BAR);
-        }
-        
-        TextRoi hTextRoi = new TextRoi(hText.x, hText.y, getTimeLabel(frame), font);
-        hTextRoi.setStrokeColor(color);
-        overlay.add(hTextRoi, TIME_BAR);
-
-		return overlay;
+	/**
+	 * Returns the table of labels for the current configuration, building
+	 * it again only if the configuration changed since the last call.
+	 */
+	TimeBarLabels getLabels() {
+		if (labels != null && labels.canExtendTo(this, config))
+			labels = labels.extend(this);
+		else if (labels == null || !labels.isValidFor(this, config))
+			labels = new TimeBarLabels(this, config, imp.getCalibration(), getFont());
+		return labels;
 	}
 
 	/**
@@ -195,25 +558,123 @@ public class TimeBar_ implements PlugIn {
      * and using the format in the current configuration..
 	 */
 	String getTimeLabel(int frame) {
+		long start = TimeBarMetrics.start();
+		try {
+			return getLabels().getLabel(frame);
+		} finally {
+			TimeBarMetrics.stop(TimeBarMetrics.Phase.LABEL, start);
+		}
+	}
+
+	/**
+	 * Formats the label of {frame}, without looking it up in the table.
+	 */
+	String formatTimeLabel(int frame) {
 		if (config.usePredefinedTimestamps)
 			return getTimeLabelFromPredefined(frame);
 
+		TimeBarPlaneTimes planeTimes = getPlaneTimes();
+		if (planeTimes != null)
+			return getTimeLabelFromPlaneTimes(frame, planeTimes);
+
 		return getTimeLabelFromFrameInterval(frame);
 	}
 
 	String getTimeLabelFromPredefined(int frame) {
-		String[] timestamps = config.predefinedTimestamps.split(",");
-		if (timestamps.length != nFrames)
+		TimeBarTimestamps timestamps = getTimestamps();
+		if (timestamps.size() != nFrames)
 			return "invalid";
-		return timestamps[frame-1];
+		return timestamps.get(frame);
+	}
+
+	/**
+	 * Returns the pre-defined timestamps, from the file of the current
+	 * configuration if there is one, parsing them again only if the
+	 * string or the path changed since the last call, or if the file
+	 * changed before forgetModifiedFiles() was called.
+	 */
+	TimeBarTimestamps getTimestamps() {
+		String path = config.timestampsFile;
+		if (timestamps == null || !timestamps.isParsedFrom(config.predefinedTimestamps, path)) {
+			if (path == null || path.isEmpty()) {
+				timestamps = TimeBarTimestamps.parse(config.predefinedTimestamps);
+			} else {
+				try {
+					timestamps = TimeBarTimestamps.read(path);
+				} catch (IOException e) {
+					IJ.log("Timebar plugin: Could not read timestamps from " + path + ": " + e.getMessage());
+					timestamps = TimeBarTimestamps.unreadable(path);
+				}
+			}
+		}
+		return timestamps;
+	}
+
+	/**
+	 * Returns the events of the file of the current configuration, or null
+	 * if there is none, reading them again only if the path changed since
+	 * the last call, or if the file changed before forgetModifiedFiles()
+	 * was called.
+	 */
+	TimeBarEvents getEvents() {
+		String path = config.eventsFile;
+		if (path == null || path.isEmpty())
+			return null;
+		if (events == null || !events.isReadFrom(path)) {
+			try {
+				events = TimeBarEvents.read(path);
+			} catch (IOException e) {
+				IJ.log("Timebar plugin: Could not read events from " + path + ": " + e.getMessage());
+				events = TimeBarEvents.unreadable(path);
+			}
+		}
+		return events;
+	}
+
+	/**
+	 * Returns the acquisition times read from the metadata, if the current
+	 * configuration uses them and they were found, or null. The metadata
+	 * is read again only if it changed since the last call, and only for
+	 * the new frames when frames were appended.
+	 */
+	TimeBarPlaneTimes getPlaneTimes() {
+		if (!config.useMetadataTimes)
+			return null;
+		if (planeTimes == null || !planeTimes.isReadFrom(imp)) {
+			boolean wasComplete = planeTimes == null || planeTimes.isComplete();
+			if (planeTimes != null && planeTimes.canExtendTo(imp))
+				planeTimes = planeTimes.extend(imp);
+			else
+				planeTimes = TimeBarPlaneTimes.read(imp);
+			// Logged once, and not again for each frame appended.
+			if (wasComplete && !planeTimes.isComplete())
+				IJ.log("Timebar plugin: The metadata does not hold the acquisition time of every frame, using the frame interval.");
+		}
+		return planeTimes.isComplete() ? planeTimes : null;
+	}
+
+	String getTimeLabelFromPlaneTimes(int frame, TimeBarPlaneTimes planeTimes) {
+		// The offset is in frames, so it is scaled by the mean interval.
+		double seconds = planeTimes.getElapsedSeconds(frame) + config.frameOffset * planeTimes.getMeanInterval();
+		return formatTime(Math.round(seconds * 1000));
 	}
 
 	String getTimeLabelFromFrameInterval(int frame) {
-        String calibrationTimeUnit = imp.getCalibration().getTimeUnit();
         double calibrationTimeInterval = imp.getCalibration().frameInterval;
 
 		double effectiveFrame = frame + config.frameOffset;
 
+        long time = (long) ((effectiveFrame - 1) * calibrationTimeInterval * getTimeUnitInMillis());
+
+        return formatTime(time);
+	}
+
+	/**
+	 * Returns the number of milliseconds in the time unit of the image.
+	 */
+	long getTimeUnitInMillis() {
+        String calibrationTimeUnit = imp.getCalibration().getTimeUnit();
+
         long factor;
         switch(calibrationTimeUnit) {
             case "ms":
@@ -246,9 +707,13 @@ public class TimeBar_ implements PlugIn {
                 // TODO: Handle unknown units by simply writing, ie "120 munites"
                 break;
         }
+        return factor;
+	}
 
-        long time = (long) ((effectiveFrame - 1) * calibrationTimeInterval * factor);
-
+	/**
+	 * Formats {time}, in milliseconds, with its sign.
+	 */
+	String formatTime(long time) {
 		String sign = "";
 		if (config.frameOffset < 0)
 			sign = "+";
@@ -269,13 +734,48 @@ public class TimeBar_ implements PlugIn {
      * all labels.
 	 */
     int getBoxWidthInPixels() {
-		updateFont();
-		ImageProcessor ip = imp.getProcessor();
-        int hLabelWidth = -1;
-        for (int f = 1; f <= nFrames; ++f) {
-		    hLabelWidth = Math.max(hLabelWidth, ip.getStringWidth(getTimeLabel(f)));
-        }
-		return hLabelWidth;
+		long start = TimeBarMetrics.start();
+		try {
+			TimeBarLabels labels = getLabels();
+			double duration = getBarDuration();
+			if (duration <= 0 || config.usePredefinedTimestamps || getPlaneTimes() != null)
+				return labels.maxWidth;
+
+			// In live mode, leave room for the label of the last frame
+			// expected, so that the box does not grow as frames are added.
+			int lastFrame = 1 + (int) Math.ceil(duration / getFrameIntervalInSeconds());
+			if (lastFrame <= nFrames)
+				return labels.maxWidth;
+			return Math.max(labels.maxWidth, labels.measure(getTimeLabelFromFrameInterval(lastFrame)));
+		} finally {
+			TimeBarMetrics.stop(TimeBarMetrics.Phase.BOX_WIDTH, start);
+		}
+	}
+
+	/**
+	 * Returns the duration, in seconds, that the full bar stands for in
+	 * live mode, or 0 if the full bar stands for all the frames.
+	 * 
+	 * Without an expected duration, the full bar stands for the frames
+	 * the image had when the timebar was first drawn.
+	 */
+	double getBarDuration() {
+		if (!config.liveMode)
+			return 0;
+		if (config.expectedDuration > 0)
+			return config.expectedDuration;
+		if (liveStartFrames == 0)
+			liveStartFrames = nFrames;
+		return (liveStartFrames - 1) * getFrameIntervalInSeconds();
+	}
+
+	/**
+	 * Returns the frame interval in seconds. Frames of an image without
+	 * frame interval count as one second each.
+	 */
+	double getFrameIntervalInSeconds() {
+		double interval = imp.getCalibration().frameInterval;
+		return interval > 0 ? interval * getTimeUnitInMillis() / 1000. : 1;
 	}
 
 	/**
@@ -307,14 +807,6 @@ public class TimeBar_ implements PlugIn {
 		return config.bcolor == null ? 0 : margin;
 	}
 
-    void updateFont() {
-		int fontType = config.boldText?Font.BOLD:Font.PLAIN;
-		String font = config.serifFont?"Serif":"SanSerif";
-		ImageProcessor ip = imp.getProcessor();
-		ip.setFont(new Font(font, fontType, config.fontSize));
-		ip.setAntialiasedText(true);
-	}
-
 	/**
 	 * Sets the positions x y of background, based on the current configuration.
 	 */
@@ -385,73 +877,177 @@ public class TimeBar_ implements PlugIn {
 	/**
 	 * Draw the timebar, based on the current configuration.
 	 * 
-	 * If {previewOnly} is true, only the active frame will be
-	 * labeled with a timebar. If it is false, all frames of
-	 * the stack will be labeled.
+	 * If {previewOnly} is true, only the displayed frame will be
+	 * labeled, by a single ROI the canvas draws over the image,
+	 * even when the timebar is to be burned in: the pixels are
+	 * neither modified nor converted again for display. If it is
+	 * false, all frames of the stack will be labeled.
 	 * 
 	 * This method chooses whether to use an overlay or the
 	 * drawing tool to create the scalebar.
 	 */
 	protected void updateTimeBar(boolean previewOnly) {
-		removeTimeBar();
+		long start = TimeBarMetrics.start();
+		try {
+			if (previewOnly)
+				removePreview();
+			else
+				removeTimeBar();
+
+			Overlay impOverlay = imp.getOverlay();
+			if (impOverlay == null)
+				impOverlay = new Overlay();
+
+			TimeBarLayout layout;
+			try {
+				layout = getLayout();
+			} catch (MissingRoiException e) {
+				return; // Simply don't draw the scalebar.
+			}
+			TimeBarLabels labels = getLabels();
+
+			if (previewOnly) {
+				// A single ROI draws the timebar of the displayed frame.
+				overlayGroup.add(impOverlay, new TimeBarRoi(layout, labels, config.toOptions(), 0));
+				imp.setOverlay(impOverlay);
+				return;
+			}
+
+			if (config.useOverlay) {
+				addTimeBarToOverlay(impOverlay, layout, labels, 1, nFrames + 1);
+				imp.setOverlay(impOverlay);
+				return;
+			}
+
+			burnTimeBar(layout, labels, 1, nFrames + 1);
+		} finally {
+			TimeBarMetrics.stop(TimeBarMetrics.Phase.UPDATE, start);
+		}
+	}
+
+	/**
+	 * Draws the timebar of the frames added to the image since the last
+	 * call, leaving the frames already drawn untouched. Used in live
+	 * mode, where the bar does not depend on the number of frames.
+	 */
+	void appendTimeBar() {
+		int fStart = nFrames + 1;
+		nFrames = imp.getNFrames();
+
+        TimeBarLayout layout;
+        try {
+            layout = getLayout();
+        } catch (MissingRoiException e) {
+            return;
+        }
+        TimeBarLabels labels = getLabels();
 
         Overlay impOverlay = imp.getOverlay();
 		if (impOverlay == null)
 			impOverlay = new Overlay();
 
-        int fStart = previewOnly ? currentFrame : 1;
-        int fEnd = previewOnly ? currentFrame + 1 : nFrames + 1;
-
-        for (int c = 1; c <= imp.getNChannels(); ++c) {
-            for (int s = 1; s <= imp.getNSlices(); ++s) {
-                for (int f = 1; f <= nFrames; ++f) {
-
-                    if (f < fStart || f >= fEnd)
-                        continue;
-
-                    Overlay scaleBarOverlay;
-                    try {
-                        scaleBarOverlay = createTimeBarOverlay(f);
-                    } catch (MissingRoiException e) {
-                        return; // Simply don't draw the scalebar.
-                    }
-
-                    if (config.useOverlay) {
-                        for (Roi roi : scaleBarOverlay) {
-							if (imp.isHyperStack())
-								roi.setPosition(c, s, f);
-							else
-								roi.setPosition(imp.getStackIndex(c, s, f));
-                            impOverlay.add(roi);
-                        }
-                        imp.setOverlay(impOverlay);
-
-                    } else {
-                        ImageStack stack = imp.getStack();
-                        int i = imp.getStackIndex(c, s, f);
-                        ImageProcessor ip = stack.getProcessor(i);
-                        drawOverlayOnProcessor(scaleBarOverlay, ip);
-                        imp.updateAndDraw();
-                    }
+        if (config.useOverlay) {
+            addTimeBarToOverlay(impOverlay, layout, labels, fStart, nFrames + 1);
+            imp.setOverlay(impOverlay);
+        } else {
+            burnTimeBar(layout, labels, fStart, nFrames + 1);
+        }
+	}
+
+	/**
+	 * Draws the timebar into the planes of the frames from {fStart} to
+	 * {fEnd}, excluded, saving what it covers into the undo journal.
+	 */
+	void burnTimeBar(TimeBarLayout layout, TimeBarLabels labels, int fStart, int fEnd) {
+        int nPlanes = imp.getNChannels() * imp.getNSlices() * (fEnd - fStart);
+        int[] indices = new int[nPlanes];
+        int[] frames = new int[nPlanes];
+        int i = 0;
+        // Planes of the same frame share their label, keep them together.
+        for (int f = fStart; f < fEnd; ++f) {
+            for (int c = 1; c <= imp.getNChannels(); ++c) {
+                for (int s = 1; s <= imp.getNSlices(); ++s) {
+                    indices[i] = imp.getStackIndex(c, s, f);
+                    frames[i] = f;
+                    ++i;
                 }
             }
-        }		
+        }
+        TimeBarUndo undo = TimeBarUndo.attach(imp);
+        long start = TimeBarMetrics.start();
+        TimeBarBurner.burnStack(imp.getStack(), indices, frames, layout, labels, undo, nThreads);
+        TimeBarMetrics.stop(TimeBarMetrics.Phase.BURN, start);
+        start = TimeBarMetrics.start();
+        imp.updateAndDraw();
+        TimeBarMetrics.stop(TimeBarMetrics.Phase.REPAINT, start);
 	}
 
-	void drawOverlayOnProcessor(Overlay overlay, ImageProcessor processor) {
-		if (processor.getBitDepth() == 8 || processor.getBitDepth() == 24) {
-			// drawOverlay() only works for 8-bits and RGB
-			processor.drawOverlay(overlay);
+	/**
+	 * Adds the ROIs of the timebar for frames {fStart} to {fEnd}-1 to
+	 * {overlay}.
+	 * 
+	 * The ROIs of a frame are identical in every channel and slice, so on
+	 * hyperstacks (and on stacks with frames only) they are added once per
+	 * frame and shown on all channels and slices. Other stacks need one
+	 * set of ROIs per stack index.
+	 * 
+	 * With "Dynamic overlay" ticked, a frame has a single TimeBarRoi,
+	 * which creates its ROIs when painted.
+	 */
+	void addTimeBarToOverlay(Overlay overlay, TimeBarLayout layout, TimeBarLabels labels, int fStart, int fEnd) {
+		boolean framesOnly = imp.getNChannels() == 1 && imp.getNSlices() == 1;
+		String options = config.dynamicOverlay ? config.toOptions() : null;
+
+		if (imp.isHyperStack() || framesOnly) {
+			for (int f = fStart; f < fEnd; ++f) {
+				for (Roi roi : createFrameRois(layout, labels, options, f)) {
+					if (imp.isHyperStack())
+						roi.setPosition(0, 0, f);
+					else
+						roi.setPosition(f);
+					overlayGroup.add(overlay, roi);
+				}
+			}
 			return;
 		}
-		ImageProcessor ip = new ByteProcessor(imp.getWidth(), imp.getHeight());
-		ip.drawOverlay(overlay);
-		for (int y = 0; y < ip.getHeight(); y++)
-			for (int x = 0; x < ip.getWidth(); x++) {
-				int p = ip.get(x, y);
-				if (p > 0)
-					processor.putPixelValue(x, y, p / 255. * (processor.getMax() - processor.getMin()) + processor.getMin());
+
+		for (int c = 1; c <= imp.getNChannels(); ++c) {
+			for (int s = 1; s <= imp.getNSlices(); ++s) {
+				for (int f = fStart; f < fEnd; ++f) {
+					for (Roi roi : createFrameRois(layout, labels, options, f)) {
+						roi.setPosition(imp.getStackIndex(c, s, f));
+						overlayGroup.add(overlay, roi);
+					}
+				}
 			}
+		}
+	}
+
+	/**
+	 * Creates the ROIs of the timebar for {frame}: a TimeBarRoi storing
+	 * {options}, or the static ROIs if {options} is null.
+	 */
+	Overlay createFrameRois(TimeBarLayout layout, TimeBarLabels labels, String options, int frame) {
+		if (options == null)
+			return layout.createOverlay(labels.getLabel(frame), frame);
+		Overlay rois = new Overlay();
+		rois.add(new TimeBarRoi(layout, labels, options, frame));
+		return rois;
+	}
+
+	/**
+	 * Draws {overlay} into the pixels of {processor}, using the burner of
+	 * the current layout.
+	 */
+	void drawOverlayOnProcessor(Overlay overlay, ImageProcessor processor) {
+		long start = TimeBarMetrics.start();
+		try {
+			if (burner == null || burner.layout != layout)
+				burner = new TimeBarBurner(layout);
+			burner.drawOverlay(overlay, processor);
+		} finally {
+			TimeBarMetrics.stop(TimeBarMetrics.Phase.DRAW_OVERLAY, start);
+		}
 	}
 
     class MissingRoiException extends Exception {
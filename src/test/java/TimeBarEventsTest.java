@@ -0,0 +1,99 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ij.ImagePlus;
+import ij.gui.NewImage;
+
+/**
+ * Checks the events active at each frame against a scan of the whole
+ * list, and that the events file is only used when the option is set.
+ */
+public class TimeBarEventsTest {
+
+    private static final int N_FRAMES = 200;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void activeEvents() throws IOException {
+        Random random = new Random(3);
+        int[][] frames = new int[300][];
+        File file = folder.newFile("events.csv");
+        PrintWriter writer = new PrintWriter(file, "UTF-8");
+        writer.println("first,last,name,color");
+        for (int e = 0; e < frames.length; ++e) {
+            int first = 1 + random.nextInt(N_FRAMES);
+            int last = first + random.nextInt(e % 3 == 0 ? N_FRAMES : 5);
+            frames[e] = new int[] {first, last};
+            writer.println(first + "," + last + ",Event " + e + ",cyan");
+        }
+        writer.close();
+
+        TimeBarEvents events = TimeBarEvents.read(file.getPath());
+        assertEquals(frames.length, events.size());
+        for (int f = 0; f <= N_FRAMES + 10; ++f) {
+            int[] active = events.getActive(f);
+            int count = 0;
+            for (int[] event : frames)
+                if (event[0] <= f && f <= event[1])
+                    ++count;
+            assertEquals("frame " + f, count, active.length);
+            for (int i = 0; i < active.length; ++i) {
+                assertFalse(events.getFirst(active[i]) > f || events.getLast(active[i]) < f);
+                if (i > 0)
+                    assertFalse(events.getFirst(active[i - 1]) > events.getFirst(active[i]));
+            }
+        }
+    }
+
+    @Test
+    public void ignoredWhenUnset() throws Exception {
+        File file = folder.newFile("events.csv");
+        PrintWriter writer = new PrintWriter(file, "UTF-8");
+        writer.println("1,50,Laser on,cyan");
+        writer.close();
+
+        ImagePlus imp = createImage();
+        TimeBarConfiguration config = new TimeBarConfiguration();
+        config.useOverlay = false;
+        config.eventsFile = file.getPath();
+        TimeBar_ plugin = new TimeBar_(imp, config);
+        assertNotNull(plugin.getEvents());
+        assertNotNull(plugin.getLayout().createEventsOverlay(1));
+
+        // Once unset, the file is not read, even if it is gone.
+        assertTrue(file.delete());
+        config.eventsFile = "";
+        plugin.applyConfiguration(config);
+        assertNull(plugin.getEvents());
+        assertNull(plugin.getLayout().createEventsOverlay(1));
+
+        ImagePlus expected = createImage();
+        TimeBar_.annotate(expected, config);
+        plugin.annotate();
+        for (int i = 1; i <= N_FRAMES; ++i)
+            assertArrayEquals("plane " + i, (byte[]) expected.getStack().getPixels(i), (byte[]) imp.getStack().getPixels(i));
+    }
+
+    private static ImagePlus createImage() {
+        ImagePlus imp = NewImage.createByteImage("frames", 200, 100, N_FRAMES, NewImage.FILL_BLACK);
+        imp.setDimensions(1, 1, N_FRAMES);
+        imp.getCalibration().frameInterval = 1;
+        imp.getCalibration().setTimeUnit("s");
+        return imp;
+    }
+}
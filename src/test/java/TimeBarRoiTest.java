@@ -0,0 +1,94 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.gui.NewImage;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.io.RoiDecoder;
+import ij.io.RoiEncoder;
+import ij.process.ImageProcessor;
+
+/**
+ * Checks that a flattened dynamic timebar draws the frame of each plane,
+ * as the static ROIs do, and that it draws the same after it was saved.
+ */
+public class TimeBarRoiTest {
+
+    private static final int N_FRAMES = 20;
+
+    @Test
+    public void flattenStack() {
+        ImagePlus dynamic = annotate(true);
+        ImagePlus fixed = annotate(false);
+        dynamic.flattenStack();
+        fixed.flattenStack();
+
+        int[] first = (int[]) dynamic.getStack().getPixels(1);
+        assertFalse(Arrays.equals(first, (int[]) dynamic.getStack().getPixels(5)));
+        assertFalse(Arrays.equals(first, (int[]) dynamic.getStack().getPixels(N_FRAMES)));
+        for (int f = 1; f <= N_FRAMES; ++f)
+            assertArrayEquals("frame " + f, (int[]) fixed.getStack().getPixels(f), (int[]) dynamic.getStack().getPixels(f));
+    }
+
+    private static ImagePlus annotate(boolean dynamicOverlay) {
+        ImagePlus imp = NewImage.createByteImage("frames", 200, 100, N_FRAMES, NewImage.FILL_BLACK);
+        imp.setDimensions(1, 1, N_FRAMES);
+        imp.getCalibration().frameInterval = 1;
+        imp.getCalibration().setTimeUnit("s");
+        TimeBarConfiguration config = new TimeBarConfiguration();
+        config.useOverlay = true;
+        config.dynamicOverlay = dynamicOverlay;
+        return TimeBar_.annotate(imp, config);
+    }
+
+    @Test
+    public void serialize() throws Exception {
+        ImagePlus imp = annotate(true);
+        Roi roi = (Roi) imp.getOverlay().get(4).clone();
+        roi.setImage(null);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(roi);
+        out.close();
+        Roi read = (Roi) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        read.setImage(imp);
+
+        assertArrayEquals(draw(imp, roi), draw(imp, read));
+    }
+
+    @Test
+    public void saveInTiff() {
+        ImagePlus imp = annotate(true);
+        Overlay overlay = imp.getOverlay();
+        Overlay saved = new Overlay();
+        for (Roi roi : overlay)
+            saved.add(RoiDecoder.openFromByteArray(RoiEncoder.saveAsByteArray(roi)));
+        imp.setOverlay(saved);
+        TimeBarRoi.restore(imp);
+
+        for (int i = 0; i < overlay.size(); ++i) {
+            assertTrue(saved.get(i) instanceof TimeBarRoi);
+            assertArrayEquals("frame " + (i + 1), draw(imp, overlay.get(i)), draw(imp, saved.get(i)));
+        }
+    }
+
+    /**
+     * Returns the pixels of a blank plane of {imp} with {roi} drawn.
+     */
+    private static byte[] draw(ImagePlus imp, Roi roi) {
+        ImageProcessor ip = imp.getProcessor().createProcessor(imp.getWidth(), imp.getHeight());
+        roi.drawPixels(ip);
+        return (byte[]) ip.getPixels();
+    }
+}
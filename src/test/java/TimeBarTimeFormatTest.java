@@ -0,0 +1,88 @@
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.apache.commons.lang3.time.DurationFormatUtils;
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.gui.NewImage;
+
+/**
+ * Checks that TimeBarTimeFormat formats durations exactly as
+ * DurationFormatUtils does, for the shipped patterns and for random ones,
+ * and that the label table of a stack uses it.
+ */
+public class TimeBarTimeFormatTest {
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    /** Letters and literals random patterns are made of. */
+    private static final String[] TOKENS = {"d", "H", "m", "s", "S", ":", "-", ".", " ", "'h'", "'.'", "'d''s'", "x"};
+
+    @Test
+    public void shippedPatterns() {
+        Random random = new Random(1);
+        for (TimeBarTimeFormat format : TimeBarTimeFormat.TIME_FORMATS) {
+            for (int i = 0; i < 20000; ++i) {
+                long millis = randomDuration(random);
+                assertEquals(format.witoutUnitsFormat + " " + millis, DurationFormatUtils.formatDuration(millis, format.witoutUnitsFormat), format.formatMillis(millis, false));
+                assertEquals(format.withUnitsFormat + " " + millis, DurationFormatUtils.formatDuration(millis, format.withUnitsFormat), format.formatMillis(millis, true));
+            }
+        }
+    }
+
+    @Test
+    public void randomPatterns() {
+        Random random = new Random(2);
+        for (int p = 0; p < 500; ++p) {
+            StringBuilder pattern = new StringBuilder();
+            int length = 1 + random.nextInt(8);
+            for (int i = 0; i < length; ++i) {
+                String token = TOKENS[random.nextInt(TOKENS.length)];
+                // Letters are repeated to pad their field.
+                int repeat = Character.isLetter(token.charAt(0)) ? 1 + random.nextInt(4) : 1;
+                for (int r = 0; r < repeat; ++r)
+                    pattern.append(token);
+            }
+            TimeBarTimeFormat format = new TimeBarTimeFormat("", pattern.toString(), pattern.toString());
+            for (int i = 0; i < 200; ++i) {
+                long millis = randomDuration(random);
+                assertEquals(pattern + " " + millis, DurationFormatUtils.formatDuration(millis, pattern.toString()), format.formatMillis(millis, false));
+            }
+        }
+    }
+
+    @Test
+    public void stackLabels() {
+        ImagePlus imp = NewImage.createByteImage("frames", 200, 100, 500, NewImage.FILL_BLACK);
+        imp.setDimensions(1, 1, 500);
+        imp.getCalibration().frameInterval = 7.25;
+        imp.getCalibration().setTimeUnit("min");
+        for (TimeBarTimeFormat format : TimeBarTimeFormat.TIME_FORMATS) {
+            TimeBarConfiguration config = new TimeBarConfiguration();
+            config.timeFormat = format;
+            TimeBar_ plugin = new TimeBar_(imp, config);
+            for (int f = 1; f <= 500; ++f) {
+                long millis = (long) ((f - 1) * 7.25 * 60 * 1000);
+                assertEquals(format.withUnitsFormat + " " + f, DurationFormatUtils.formatDuration(millis, format.withUnitsFormat), plugin.getTimeLabel(f));
+            }
+        }
+    }
+
+    /**
+     * Returns a duration of up to 10^5 days, often on a boundary between
+     * two units.
+     */
+    private static long randomDuration(Random random) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return random.nextInt(1000);
+            case 1:
+                long[] units = {1000, 60 * 1000, 60 * 60 * 1000, MILLIS_PER_DAY};
+                return Math.max(0, units[random.nextInt(units.length)] * random.nextInt(1000) - random.nextInt(2));
+            default:
+                return (long) (random.nextDouble() * 100000 * MILLIS_PER_DAY);
+        }
+    }
+}
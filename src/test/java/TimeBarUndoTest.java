@@ -0,0 +1,109 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.NewImage;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+/**
+ * Checks that the journal reverts burned-in pixels to the original ones,
+ * whatever the pixel type, and that a later run of the plugin on the
+ * image reverts them too.
+ */
+public class TimeBarUndoTest {
+
+    private static final int N_FRAMES = 10;
+
+    @Test
+    public void restoreAllTypes() {
+        for (int bitDepth : new int[] {8, 16, 24, 32}) {
+            ImagePlus imp = NewImage.createImage("planes", 64, 48, 3, bitDepth, NewImage.FILL_RANDOM);
+            ImageStack stack = imp.getStack();
+            ImageStack original = stack.duplicate();
+            TimeBarUndo undo = new TimeBarUndo(stack);
+            undo.ensureCapacity(stack.getSize());
+            for (int i = 1; i <= stack.getSize(); ++i) {
+                ImageProcessor ip = stack.getProcessor(i);
+                undo.save(i, ip, new Rectangle(5, 5, 20, 10));
+                ip.setColor(0);
+                ip.fill(new Roi(5, 5, 20, 10));
+                // Saving again a larger region keeps the original pixels.
+                undo.save(i, ip, new Rectangle(0, 0, 30, 20));
+                ip.fill(new Roi(0, 0, 30, 20));
+            }
+            assertFalse(Arrays.equals(toArray(original, 1), toArray(stack, 1)));
+
+            undo.restore();
+            for (int i = 1; i <= stack.getSize(); ++i)
+                assertArrayEquals(bitDepth + "-bit, plane " + i, toArray(original, i), toArray(stack, i));
+        }
+    }
+
+    @Test
+    public void removeInLaterRun() {
+        ImagePlus imp = createImage();
+        ImageStack original = imp.getStack().duplicate();
+
+        TimeBar_.annotate(imp, burnConfiguration());
+        assertFalse(Arrays.equals((byte[]) original.getPixels(1), (byte[]) imp.getStack().getPixels(1)));
+
+        new TimeBar_(imp, burnConfiguration()).removeTimeBar();
+        assertStackEquals(original, imp.getStack());
+    }
+
+    @Test
+    public void replaceInLaterRun() {
+        ImagePlus imp = createImage();
+        ImageStack original = imp.getStack().duplicate();
+        TimeBarConfiguration config = burnConfiguration();
+        config.location = TimeBarLocation.LOCATIONS.get(1);
+
+        ImagePlus expected = createImage();
+        expected.setStack(original.duplicate());
+        TimeBar_.annotate(expected, config);
+
+        TimeBar_.annotate(imp, burnConfiguration());
+        TimeBar_.annotate(imp, config);
+        assertStackEquals(expected.getStack(), imp.getStack());
+
+        new TimeBar_(imp, config).removeTimeBar();
+        assertStackEquals(original, imp.getStack());
+    }
+
+    private static ImagePlus createImage() {
+        ImagePlus imp = NewImage.createByteImage("frames", 200, 100, N_FRAMES, NewImage.FILL_RANDOM);
+        imp.setDimensions(1, 1, N_FRAMES);
+        imp.getCalibration().frameInterval = 1;
+        imp.getCalibration().setTimeUnit("s");
+        return imp;
+    }
+
+    private static TimeBarConfiguration burnConfiguration() {
+        TimeBarConfiguration config = new TimeBarConfiguration();
+        config.useOverlay = false;
+        return config;
+    }
+
+    /**
+     * Returns the raw values of the pixels of plane {index} of {stack}.
+     */
+    private static int[] toArray(ImageStack stack, int index) {
+        ImageProcessor ip = stack.getProcessor(index);
+        int[] values = new int[ip.getPixelCount()];
+        for (int i = 0; i < values.length; ++i)
+            values[i] = ip.get(i);
+        return values;
+    }
+
+    private static void assertStackEquals(ImageStack expected, ImageStack actual) {
+        for (int i = 1; i <= expected.getSize(); ++i)
+            assertArrayEquals("plane " + i, (byte[]) expected.getPixels(i), (byte[]) actual.getPixels(i));
+    }
+}